@@ -38,20 +38,20 @@ import mixer.utils.aba.ABADataStack;
 import mixer.utils.bed.BedFile;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ABA extends MixerCLT {
-    private final Object key = new Object();
+    private static final long MEGABYTE = 1024 * 1024;
     private final boolean saveAllData = true;
     private String bedListPath;
     private File outputDirectory;
-    private Dataset ds;
+    private Dataset[] datasets;
     private int window = 20;
     private int[] resolutions = new int[]{100};
 
@@ -79,9 +79,12 @@ public class ABA extends MixerCLT {
         outputDirectory = HiCFileTools.createValidDirectory(args[3]);
 
         List<String> summedHiCFiles = Arrays.asList(args[1].split("\\+"));
-        ds = HiCFileTools.extractDatasetForCLT(summedHiCFiles.get(0), false, false, true);
+        datasets = new Dataset[summedHiCFiles.size()];
+        for (int i = 0; i < datasets.length; i++) {
+            datasets[i] = HiCFileTools.extractDatasetForCLT(summedHiCFiles.get(i), false, false, true);
+        }
 
-        NormalizationType preferredNorm = parser.getNormalizationTypeOption(ds.getNormalizationHandler());
+        NormalizationType preferredNorm = parser.getNormalizationTypeOption(datasets[0].getNormalizationHandler());
         if (preferredNorm != null)
             norm = preferredNorm;
 
@@ -101,62 +104,105 @@ public class ABA extends MixerCLT {
     public void run() {
 
         int L = 2 * window + 1;
-        for (final int resolution : HiCFileTools.filterResolutions(ds.getBpZooms(), resolutions)) {
-
-            AtomicInteger numOfRegions = new AtomicInteger(0);
-
-            System.out.println("Processing for resolution " + resolution);
-            HiCZoom zoom = new HiCZoom(HiCZoom.HiCUnit.BP, resolution);
-
-            ChromosomeHandler handler = ds.getChromosomeHandler();
-            if (givenChromosomes != null)
-                handler = HiCFileTools.stringToChromosomes(givenChromosomes, handler);
-
-            // Metrics resulting from apa filtering
-            final Map<String, Integer[]> filterMetrics = new HashMap<>();
-
-            BedFile bedFile = new BedFile(bedListPath, handler);
-            if (bedFile.getNumTotalFeatures() < 1) {
-                System.err.println("bed file is empty or incorrect path provided.");
-                System.exit(3);
+        // only resolutions available in every pooled dataset
+        List<Integer> validResolutions = new ArrayList<>();
+        for (int resolution : HiCFileTools.filterResolutions(datasets[0].getBpZooms(), resolutions)) {
+            validResolutions.add(resolution);
+        }
+        for (int i = 1; i < datasets.length; i++) {
+            List<Integer> available = new ArrayList<>();
+            for (int resolution : HiCFileTools.filterResolutions(datasets[i].getBpZooms(), resolutions)) {
+                available.add(resolution);
             }
+            validResolutions.retainAll(available);
+        }
 
+        ChromosomeHandler handler = datasets[0].getChromosomeHandler();
+        if (givenChromosomes != null)
+            handler = HiCFileTools.stringToChromosomes(givenChromosomes, handler);
 
-            final AtomicInteger currentProgressStatus = new AtomicInteger(0);
-            Chromosome[] chromosomes = handler.getChromosomeArrayWithoutAllByAll();
-            double maxProgressStatus = chromosomes.length;
-
-            ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
-            ABADataStack.initializeDataSaveFolder(outputDirectory, "" + resolution);
+        // parsed once, shared by all resolutions
+        BedFile bedFile = new BedFile(bedListPath, handler);
+        if (bedFile.getNumTotalFeatures() < 1) {
+            System.err.println("bed file is empty or incorrect path provided.");
+            System.exit(3);
+        }
 
-            AtomicInteger counter = new AtomicInteger(0);
-            for (int l = 0; l < numCPUThreads; l++) {
-                executor.execute(() -> {
-                    int index = counter.getAndIncrement();
-                    while (index < chromosomes.length) {
-                        Chromosome chrom = chromosomes[index];
-                        MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chrom, chrom, zoom);
-                        if (zd != null) {
+        Chromosome[] chromosomes = handler.getChromosomeArrayWithoutAllByAll();
+        int numResolutions = validResolutions.size();
+        ABADataStack[] dataStacks = new ABADataStack[numResolutions];
+        AtomicInteger[] numOfRegions = new AtomicInteger[numResolutions];
+        for (int r = 0; r < numResolutions; r++) {
+            System.out.println("Processing for resolution " + validResolutions.get(r));
+            dataStacks[r] = new ABADataStack(L, outputDirectory, "" + validResolutions.get(r));
+            numOfRegions[r] = new AtomicInteger(0);
+        }
 
-                            bedFile.doABAOnChrom(chrom, zd, outputDirectory, resolution, numOfRegions, L, window, bedFile, norm);
-                            System.out.print(((int) Math.floor((100.0 * currentProgressStatus.incrementAndGet()) / maxProgressStatus)) + "% ");
+        // every (resolution, chromosome) pair is an independent task; the dense read buffers
+        // of all running tasks are drawn from one shared memory budget (in MB)
+        int memoryBudget = (int) Math.max(1, Runtime.getRuntime().maxMemory() / 2 / MEGABYTE);
+        Semaphore memoryPermits = new Semaphore(memoryBudget);
+
+        final AtomicInteger currentProgressStatus = new AtomicInteger(0);
+        int numTasks = numResolutions * chromosomes.length;
+        double maxProgressStatus = numTasks;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
+        AtomicInteger counter = new AtomicInteger(0);
+        for (int l = 0; l < numCPUThreads; l++) {
+            executor.execute(() -> {
+                ABADataStack.Accumulator[] accumulators = new ABADataStack.Accumulator[numResolutions];
+                int index = counter.getAndIncrement();
+                while (index < numTasks) {
+                    int r = index / chromosomes.length;
+                    Chromosome chrom = chromosomes[index % chromosomes.length];
+                    HiCZoom zoom = new HiCZoom(HiCZoom.HiCUnit.BP, validResolutions.get(r));
+                    MatrixZoomData[] zds = getMatrixZoomDatas(chrom, zoom);
+                    if (zds != null) {
+                        if (accumulators[r] == null) {
+                            accumulators[r] = dataStacks[r].createAccumulator();
                         }
-                        index = counter.getAndIncrement();
+                        int width = BedFile.getBufferWidth(zds, L);
+                        int permits = (int) Math.min(memoryBudget,
+                                Math.max(1, (8L * width * width) / MEGABYTE));
+                        memoryPermits.acquireUninterruptibly(permits);
+                        try {
+                            bedFile.doABAOnChrom(chrom, zds, validResolutions.get(r), numOfRegions[r], L, window,
+                                    accumulators[r], norm);
+                        } finally {
+                            memoryPermits.release(permits);
+                        }
+                        System.out.print(((int) Math.floor((100.0 * currentProgressStatus.incrementAndGet()) / maxProgressStatus)) + "% ");
                     }
-                });
-            }
+                    index = counter.getAndIncrement();
+                }
+            });
+        }
 
-            executor.shutdown();
+        executor.shutdown();
 
-            // Wait until all threads finish
-            while (!executor.isTerminated()) {
-            }
+        // Wait until all threads finish
+        while (!executor.isTerminated()) {
+        }
 
-            System.out.println("Exporting ABA results...");
-            //save data as int array
-            ABADataStack.exportGenomeWideData(numOfRegions.get(), saveAllData);
-            ABADataStack.clearAllData();
+        System.out.println("Exporting ABA results...");
+        for (int r = 0; r < numResolutions; r++) {
+            dataStacks[r].exportGenomeWideData(numOfRegions[r].get(), saveAllData);
         }
         System.out.println("ABA complete");
     }
+
+    /**
+     * @return the zoom for this chromosome from every pooled dataset, or null if any dataset lacks it
+     */
+    private MatrixZoomData[] getMatrixZoomDatas(Chromosome chrom, HiCZoom zoom) {
+        MatrixZoomData[] zds = new MatrixZoomData[datasets.length];
+        for (int i = 0; i < datasets.length; i++) {
+            Chromosome chromForDataset = datasets[i].getChromosomeHandler().getChromosomeFromName(chrom.getName());
+            if (chromForDataset == null) return null;
+            zds[i] = HiCFileTools.getMatrixZoomData(datasets[i], chromForDataset, chromForDataset, zoom);
+            if (zds[i] == null) return null;
+        }
+        return zds;
+    }
 }
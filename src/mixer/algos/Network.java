@@ -28,16 +28,22 @@ import javastraw.feature2D.Feature2D;
 import javastraw.feature2D.Feature2DList;
 import javastraw.feature2D.Feature2DParser;
 import javastraw.reader.Dataset;
+import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import javastraw.tools.MatrixTools;
 import mixer.clt.CommandLineParserForMixer;
 import mixer.clt.MixerCLT;
+import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.network.CSRGraph;
 import mixer.utils.network.ConnectedComponentBFS;
-import mixer.utils.network.LoopAnchor;
+import mixer.utils.network.LoopAnchorClusters;
+import mixer.utils.network.WeightedLoopNetwork;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by muhammadsaadshamim on 9/14/15.
@@ -48,9 +54,10 @@ public class Network extends MixerCLT {
     private String inputBedpeFile, outputPath;
     private int resolution = 5000;
     private Dataset ds;
+    private boolean useWeights = false;
 
     public Network() {
-        super("network [-r resolution] <hicfile> <bedpe> <output_stem>");
+        super("network [-r resolution] [-k norm] [--weighted] <hicfile> <bedpe> <output_stem>");
     }
 
     @Override
@@ -63,6 +70,11 @@ public class Network extends MixerCLT {
         outputPath = args[3];
         ds = HiCFileTools.extractDatasetForCLT(args[1], false, false, true);
 
+        NormalizationType preferredNorm = mixerParser.getNormalizationTypeOption(ds.getNormalizationHandler());
+        if (preferredNorm != null)
+            norm = preferredNorm;
+        useWeights = mixerParser.getWeightedNetworkOption();
+
         try {
             int specifiedResolution = mixerParser.getMultipleResolutionOptions().get(0);
             resolution = specifiedResolution;
@@ -84,22 +96,80 @@ public class Network extends MixerCLT {
 
         MatrixTools.saveMatrixTextNumpy(outputPath + "loop_network_sizes.npy", sizes);
         listA.exportFeatureList(new File(outputPath + "_large_networks.bedpe"), false, Feature2DList.ListFormat.NA);
+
+        if (useWeights) {
+            Feature2DList listW = Feature2DParser.loadFeatures(inputBedpeFile, handler, false, null, false);
+            analyzeWeightedNetworks(listW, handler);
+            listW.exportFeatureList(new File(outputPath + "_weighted_network.bedpe"), false, Feature2DList.ListFormat.NA);
+        }
     }
 
-    private List<Integer> identifyNetworks(Feature2DList list) {
-        List<Integer> loopNetworkSizes = Collections.synchronizedList(new ArrayList<>());
+    private void analyzeWeightedNetworks(Feature2DList list, ChromosomeHandler handler) {
+        final Map<String, Chromosome> chrNameToChromosome = new HashMap<>();
+        for (Chromosome chr : handler.getChromosomeArray()) {
+            chrNameToChromosome.put(Feature2DList.getKey(chr, chr), chr);
+        }
+        processChromosomesInParallel(list, (index, chr, feature2DList) -> {
+            Chromosome chromosome = chrNameToChromosome.get(chr);
+            if (chromosome == null) return feature2DList; // inter-chromosomal loops are left as they are
+            WeightedLoopNetwork network = new WeightedLoopNetwork(ds, chromosome, resolution, norm,
+                    feature2DList, bufferWidth);
+            network.addAttributes(feature2DList);
+            return feature2DList;
+        });
+    }
 
-        list.filterLists((chr, feature2DList) -> {
+    private List<Integer> identifyNetworks(Feature2DList list) {
+        Map<Integer, List<Integer>> sizesForChromosome = new HashMap<>();
+        int numChromosomes = processChromosomesInParallel(list, (index, chr, feature2DList) -> {
             ConnectedComponentBFS cc = processNetworksForChromosome(resolution, feature2DList);
-
-            loopNetworkSizes.addAll(cc.getClusterSizes());
-
+            synchronized (sizesForChromosome) {
+                sizesForChromosome.put(index, cc.getClusterSizes());
+            }
             return extractBigNetworks(cc, feature2DList);
         });
 
+        List<Integer> loopNetworkSizes = new ArrayList<>();
+        for (int c = 0; c < numChromosomes; c++) {
+            loopNetworkSizes.addAll(sizesForChromosome.get(c));
+        }
         return loopNetworkSizes;
     }
 
+    /**
+     * runs the processor on each chromosome's list concurrently and replaces each list with its result
+     *
+     * @return number of chromosome lists; the index passed to the processor follows the list's own order
+     */
+    private int processChromosomesInParallel(Feature2DList list, ChromosomeProcessor processor) {
+        List<String> keys = new ArrayList<>();
+        List<List<Feature2D>> chromosomeLists = new ArrayList<>();
+        list.filterLists((chr, feature2DList) -> {
+            synchronized (keys) {
+                keys.add(chr);
+                chromosomeLists.add(feature2DList);
+            }
+            return feature2DList;
+        });
+
+        int numChromosomes = keys.size();
+        Map<String, List<Feature2D>> results = new HashMap<>();
+        AtomicInteger currChromosomeIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int c = currChromosomeIndex.getAndIncrement();
+            while (c < numChromosomes) {
+                List<Feature2D> result = processor.process(c, keys.get(c), chromosomeLists.get(c));
+                synchronized (results) {
+                    results.put(keys.get(c), result);
+                }
+                c = currChromosomeIndex.getAndIncrement();
+            }
+        });
+
+        list.filterLists((chr, feature2DList) -> results.get(chr));
+        return numChromosomes;
+    }
+
     private List<Feature2D> extractBigNetworks(ConnectedComponentBFS cc, List<Feature2D> feature2DList) {
         List<Feature2D> bigNetworks = new ArrayList<>();
         for (Set<Integer> network : cc.getLargeNetworks()) {
@@ -111,49 +181,25 @@ public class Network extends MixerCLT {
     }
 
     private ConnectedComponentBFS processNetworksForChromosome(int resolution, List<Feature2D> feature2DList) {
-        List<LoopAnchor> upStreamList = new ArrayList<>();
-        List<LoopAnchor> downStreamList = new ArrayList<>();
-        //Matrix matrix = ds.getMatrix(chromosome, chromosome);
-        //MatrixZoomData zd = matrix.getZoomData(new HiCZoom(HiC.Unit.BP, resolution));
-
+        long[] upStreamMids = new long[feature2DList.size()];
+        long[] downStreamMids = new long[feature2DList.size()];
         for (int i = 0; i < feature2DList.size(); i++) {
             Feature2D loop = feature2DList.get(i);
-            long mid1 = loop.getMidPt1() / resolution;
-            long mid2 = loop.getMidPt2() / resolution;
-
-            handleAnchor(mid1, upStreamList, i);
-            handleAnchor(mid2, downStreamList, i);
+            upStreamMids[i] = loop.getMidPt1() / resolution;
+            downStreamMids[i] = loop.getMidPt2() / resolution;
         }
-        Map<Integer, Set<Integer>> adjacencyMatrix = generateAdjacencies(upStreamList, downStreamList);
-        ConnectedComponentBFS cc = new ConnectedComponentBFS(adjacencyMatrix, feature2DList.size());
-        return cc;
-    }
-
-    private Map<Integer, Set<Integer>> generateAdjacencies(List<LoopAnchor> upStreamList, List<LoopAnchor> downStreamList) {
-        Map<Integer, Set<Integer>> adjacencyMatrix = new HashMap<>();
-        addContactsToMap(adjacencyMatrix, upStreamList);
-        addContactsToMap(adjacencyMatrix, downStreamList);
-        return adjacencyMatrix;
-    }
 
-    private void addContactsToMap(Map<Integer, Set<Integer>> adjacencyMatrix, List<LoopAnchor> anchors) {
-        for (LoopAnchor anchor : anchors) {
-            if (anchor.size() > 1) {
-                anchor.populateAdjacencyMatrix(adjacencyMatrix);
-            }
-        }
+        LoopAnchorClusters upStreamAnchors = new LoopAnchorClusters(upStreamMids, bufferWidth);
+        LoopAnchorClusters downStreamAnchors = new LoopAnchorClusters(downStreamMids, bufferWidth);
+        int numLinks = upStreamAnchors.getNumLinks() + downStreamAnchors.getNumLinks();
+        int[] sources = new int[numLinks];
+        int[] destinations = new int[numLinks];
+        int e = upStreamAnchors.addLinks(sources, destinations, 0);
+        e = downStreamAnchors.addLinks(sources, destinations, e);
+        return new ConnectedComponentBFS(new CSRGraph(feature2DList.size(), sources, destinations, e));
     }
 
-    private void handleAnchor(long midBin, List<LoopAnchor> anchors, Integer id) {
-        boolean notHandled = true;
-        for (LoopAnchor anchor : anchors) {
-            if (anchor.overlaps(midBin)) {
-                notHandled = false;
-                anchor.add(midBin, id);
-            }
-        }
-        if (notHandled) {
-            anchors.add(new LoopAnchor(midBin, id, bufferWidth));
-        }
+    private interface ChromosomeProcessor {
+        List<Feature2D> process(int index, String chr, List<Feature2D> feature2DList);
     }
 }
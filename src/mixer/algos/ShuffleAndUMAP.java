@@ -33,11 +33,14 @@ import javastraw.tools.HiCFileTools;
 import javastraw.tools.UNIXTools;
 import mixer.clt.CommandLineParserForMixer;
 import mixer.clt.MixerCLT;
+import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.matrix.InterMatrixCache;
 import mixer.utils.matrix.InterOnlyMatrix;
 import mixer.utils.shuffle.ShuffleAction;
 import mixer.utils.similaritymeasures.SimilarityMetric;
 import mixer.utils.slice.structures.SliceUtils;
 import mixer.utils.slice.structures.SubcompartmentInterval;
+import mixer.utils.umap.LandmarkUmap;
 import mixer.utils.umap.UMAPAction;
 
 import java.io.File;
@@ -66,7 +69,8 @@ public class ShuffleAndUMAP extends MixerCLT {
 
     // subcompartment lanscape identification via clustering enrichment
     public ShuffleAndUMAP(String name) {
-        super("[intra-]shuffle-umap [-r resolution] [-k NONE/VC/VC_SQRT/KR/SCALE] [-w window] [--verbose] " +
+        super("[intra-]shuffle-umap [-r resolution] [-k NONE/VC/VC_SQRT/KR/SCALE] [-w window] [--umap-sample n] " +
+                "[--shuffle-rounds min,max] [--shuffle-tolerance tol] [--tiles] [-z threads] [--verbose] " +
                 "<file.hic> <subcompartment.bed(s)> <outfolder> <prefix>");
         useGWMap = name.contains("gw");
         useIntraMap = name.contains("intra");
@@ -102,10 +106,37 @@ public class ShuffleAndUMAP extends MixerCLT {
 
         randomSeed = mixerParser.getSeedOption();
 
+        int numThreads = mixerParser.getNumThreads();
+        if (numThreads > 0) {
+            ParallelizedMixerTools.setNumThreads(numThreads);
+        }
+
         int minSize = mixerParser.getWindowSizeOption();
         if (minSize > 1) {
             compressionFactor = minSize;
         }
+
+        List<Integer> shuffleRounds = mixerParser.getShuffleRoundsOption();
+        if (shuffleRounds != null) {
+            if (shuffleRounds.size() != 2 || shuffleRounds.get(0) < 1 || shuffleRounds.get(0) > shuffleRounds.get(1)) {
+                System.err.println("Shuffle rounds must be given as min,max");
+                printUsageAndExit(51);
+            }
+            ShuffleAction.MIN_ROUNDS = shuffleRounds.get(0);
+            ShuffleAction.MAX_ROUNDS = shuffleRounds.get(1);
+        }
+
+        double shuffleTolerance = mixerParser.getShuffleToleranceOption();
+        if (shuffleTolerance > 0) {
+            ShuffleAction.ROUNDS_TOLERANCE = shuffleTolerance;
+        }
+
+        int umapSample = mixerParser.getUmapSampleOption();
+        if (umapSample > 0) {
+            LandmarkUmap.SAMPLE_SIZE = umapSample;
+        }
+
+        UMAPAction.SAVE_TILES = mixerParser.getTilesOption();
     }
 
     @Override
@@ -117,6 +148,13 @@ public class ShuffleAndUMAP extends MixerCLT {
 
         UNIXTools.makeDir(outputDirectory);
 
+        // each inter map is extracted once and shared by every BED file and the UMAP pass
+        InterMatrixCache matrixCache = null;
+        if (!useIntraMap) {
+            int numUses = (doShuffle ? referenceBedFiles.length : 0) + (doUMAP && !useGWMap ? 1 : 0);
+            matrixCache = new InterMatrixCache(ds, norm, resolution, metric, numUses);
+        }
+
         if (doShuffle) {
             for (int i = 0; i < referenceBedFiles.length; i++) {
                 GenomeWide1DList<SubcompartmentInterval> subcompartments =
@@ -131,7 +169,8 @@ public class ShuffleAndUMAP extends MixerCLT {
                             metric, intraType, useSymmetry);
                     matrix.runIntraAnalysis(subcompartments, newFolder, generator);
                 } else {
-                    matrix = new ShuffleAction(ds, norm, resolution, compressionFactor, metric, useSymmetry);
+                    matrix = new ShuffleAction(ds, norm, resolution, compressionFactor, metric, useSymmetry,
+                            matrixCache);
                     matrix.runInterAnalysis(subcompartments, newFolder, generator);
                 }
                 matrix.savePlotsAndResults(newFolder, prefix[i]);
@@ -144,7 +183,7 @@ public class ShuffleAndUMAP extends MixerCLT {
             if (useIntraMap) {
                 umap = new UMAPAction(ds, norm, resolution, compressionFactor, metric, intraType);
             } else {
-                umap = new UMAPAction(ds, norm, resolution, compressionFactor, metric, useGWMap);
+                umap = new UMAPAction(ds, norm, resolution, compressionFactor, metric, useGWMap, matrixCache);
             }
             umap.runAnalysis(referenceBedFiles, outputDirectory, chromosomeHandler);
         }
@@ -31,8 +31,11 @@ import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import mixer.clt.CommandLineParserForMixer;
 import mixer.clt.MixerCLT;
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.slice.cleaning.SliceMatrixCleaner;
+import mixer.utils.slice.gmm.GaussianMixtureModels;
 import mixer.utils.slice.kmeans.FullGenomeOEWithinClusters;
+import mixer.utils.umap.LandmarkUmap;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -63,10 +66,15 @@ public class Slice extends MixerCLT {
     private String prefix = "";
     public static boolean USE_KMEANS = false, USE_KMEDIANS = true;
     public static boolean USE_ENCODE_MODE = false;
+    public static GaussianMixtureModels.CovarianceType GMM_COVARIANCE_TYPE = GaussianMixtureModels.CovarianceType.FULL;
+    public static int GMM_NUM_FACTORS = 10;
+    public static int PCA_VARIANCE_PERCENT = 0;
+    public static boolean USE_KNN_CLEANING = false;
+    public static final int PCA_MAX_COMPONENTS = 100;
 
     // subcompartment lanscape identification via clustering enrichment
     public Slice(String command) {
-        super("slice [-r resolution] [--verbose] " +
+        super("slice [-r resolution] [--verbose] [--gmm-covariance full/diagonal/spherical/factor] [--gmm-factors q] [--pca percent] [--umap-sample n] [--umap-threads n] [--knn-clean] [-z threads] " +
                 //"<-k NONE/VC/VC_SQRT/KR/SCALE> [--compare reference.bed] [--has-translocation] " +
                 "<file.hic> <K0,KF,nK> <outfolder> <prefix_>\n" +
                 "   K0 - minimum number of clusters\n" +
@@ -121,6 +129,42 @@ public class Slice extends MixerCLT {
         }
 
         USE_ENCODE_MODE = mixerParser.getENCODEOption();
+        USE_KNN_CLEANING = mixerParser.getKNNCleanOption();
+
+        String gmmCovariance = mixerParser.getGMMCovarianceOption();
+        if (gmmCovariance != null) {
+            try {
+                GMM_COVARIANCE_TYPE = GaussianMixtureModels.CovarianceType.valueOf(gmmCovariance.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("GMM covariance must be one of full, diagonal, spherical, or factor");
+                printUsageAndExit(5);
+            }
+        }
+
+        int gmmFactors = mixerParser.getGMMFactorsOption();
+        if (gmmFactors > 0) {
+            GMM_NUM_FACTORS = gmmFactors;
+        }
+
+        int pcaPercent = mixerParser.getPCAOption();
+        if (pcaPercent > 0) {
+            PCA_VARIANCE_PERCENT = Math.min(pcaPercent, 100);
+        }
+
+        int umapSample = mixerParser.getUmapSampleOption();
+        if (umapSample > 0) {
+            LandmarkUmap.SAMPLE_SIZE = umapSample;
+        }
+
+        int numThreads = mixerParser.getNumThreads();
+        if (numThreads > 0) {
+            ParallelizedMixerTools.setNumThreads(numThreads);
+        }
+
+        int umapThreads = mixerParser.getUmapThreadsOption();
+        if (umapThreads > 0) {
+            FullGenomeOEWithinClusters.numThreadsForUMAP = umapThreads;
+        }
     }
 
 
@@ -55,6 +55,16 @@ public class CommandLineParserForMixer extends CmdLineParser {
     private final Option encodeOption = addBooleanOption("encode-mode");
     private final Option mapTypeOption = addIntegerOption("type");
     private final Option correlationTypeOption = addIntegerOption("corr");
+    private final Option gmmCovarianceOption = addStringOption("gmm-covariance");
+    private final Option gmmFactorsOption = addIntegerOption("gmm-factors");
+    private final Option pcaOption = addIntegerOption("pca");
+    private final Option umapSampleOption = addIntegerOption("umap-sample");
+    private final Option umapThreadsOption = addIntegerOption("umap-threads");
+    private final Option shuffleRoundsOption = addStringOption("shuffle-rounds");
+    private final Option shuffleToleranceOption = addDoubleOption("shuffle-tolerance");
+    private final Option weightedNetworkOption = addBooleanOption("weighted");
+    private final Option tilesOption = addBooleanOption("tiles");
+    private final Option knnCleanOption = addBooleanOption("knn-clean");
 
     public CommandLineParserForMixer() {
     }
@@ -70,6 +80,10 @@ public class CommandLineParserForMixer extends CmdLineParser {
         return optionToString(sliceCompareOption);
     }
 
+    public String getGMMCovarianceOption() {
+        return optionToString(gmmCovarianceOption);
+    }
+
     /**
      * int flags
      */
@@ -101,6 +115,29 @@ public class CommandLineParserForMixer extends CmdLineParser {
         return optionToInt(correlationTypeOption);
     }
 
+    public int getGMMFactorsOption() {
+        return optionToInt(gmmFactorsOption);
+    }
+
+    public int getPCAOption() {
+        return optionToInt(pcaOption);
+    }
+
+    public int getUmapSampleOption() {
+        return optionToInt(umapSampleOption);
+    }
+
+    public int getUmapThreadsOption() {
+        return optionToInt(umapThreadsOption);
+    }
+
+    /**
+     * double flags
+     */
+    public double getShuffleToleranceOption() {
+        return optionToDouble(shuffleToleranceOption);
+    }
+
     /**
      * String Set flags
      */
@@ -112,6 +149,10 @@ public class CommandLineParserForMixer extends CmdLineParser {
         return optionToIntegerList(multipleResolutionsOption);
     }
 
+    public List<Integer> getShuffleRoundsOption() {
+        return optionToIntegerList(shuffleRoundsOption);
+    }
+
     public long[] getMultipleSeedsOption() {
         List<String> possibleSeeds = optionToStringList(randomSeedsOption);
         if (possibleSeeds != null) {
@@ -144,6 +185,18 @@ public class CommandLineParserForMixer extends CmdLineParser {
         return optionToBoolean(versionOption);
     }
 
+    public boolean getWeightedNetworkOption() {
+        return optionToBoolean(weightedNetworkOption);
+    }
+
+    public boolean getTilesOption() {
+        return optionToBoolean(tilesOption);
+    }
+
+    public boolean getKNNCleanOption() {
+        return optionToBoolean(knnCleanOption);
+    }
+
     /**
      * String flags
      */
@@ -30,12 +30,53 @@ import java.util.concurrent.TimeUnit;
 
 public class ParallelizedMixerTools {
 
+    private static int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // lets tasks that already run side by side split the thread count among their own parallel loops
+    private static final ThreadLocal<Integer> threadBudget = new ThreadLocal<>();
+
+    /**
+     * sets the default thread count (e.g. from -z) used by launchParallelizedCode(runnable)
+     */
+    public static void setNumThreads(int newNumThreads) {
+        numThreads = Math.max(1, newNumThreads);
+    }
+
+    /**
+     * @return the thread budget of the calling task if one was set, otherwise the default thread count
+     */
+    public static int getNumThreads() {
+        Integer budget = threadBudget.get();
+        return budget != null ? budget : numThreads;
+    }
+
+    /**
+     * runs the task with launchParallelizedCode(runnable) limited to the given number of threads
+     * on this thread, so that tasks sharing one pool do not each start full-size pools
+     */
+    public static void runWithThreadBudget(int budget, Runnable task) {
+        Integer previous = threadBudget.get();
+        threadBudget.set(Math.max(1, budget));
+        try {
+            task.run();
+        } finally {
+            if (previous == null) {
+                threadBudget.remove();
+            } else {
+                threadBudget.set(previous);
+            }
+        }
+    }
+
     public static void launchParallelizedCode(Runnable runnable) {
-        int numCPUThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
-        launchParallelizedCode(numCPUThreads, runnable);
+        launchParallelizedCode(getNumThreads(), runnable);
     }
 
-    private static void launchParallelizedCode(int numCPUThreads, Runnable runnable) {
+    public static void launchParallelizedCode(int numCPUThreads, Runnable runnable) {
+        if (numCPUThreads <= 1) {
+            runnable.run();
+            return;
+        }
+
         ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
         for (int l = 0; l < numCPUThreads; l++) {
             executor.execute(runnable);
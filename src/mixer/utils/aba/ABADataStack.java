@@ -27,42 +27,34 @@ package mixer.utils.aba;
 import javastraw.tools.HiCFileTools;
 import javastraw.tools.MatrixTools;
 import mixer.MixerGlobals;
-import org.apache.commons.math3.linear.RealMatrix;
+import mixer.clt.ParallelizedMixerTools;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ABADataStack {
 
-    private static final Object key = new Object();
-    // genome wide variables
-    private static boolean genomeWideVariablesNotSet = true;
-    private static RealMatrix gwAggregateMatrix;
-    private static RealMatrix gwAggSupDiagNormedMatrix;
-    private static RealMatrix gwAggDiagNormedMatrix;
-    // saving data variables
-    private static File dataDirectory;
-
-    // chr variables
-    private RealMatrix aggregateMatrix;
-    private RealMatrix aggSupDiagNormedMatrix;
-    private RealMatrix aggDiagNormedMatrix;
+    private final int n;
+    private final File dataDirectory;
+    private final Queue<Accumulator> accumulators = new ConcurrentLinkedQueue<>();
 
     /**
-     * class for saving data from chromosme wide run of ABA, keeps static class to store genome wide data
+     * class for aggregating the data from a run of ABA; each worker thread adds regions
+     * to its own accumulator, and these are merged when the genome wide data is exported
      *
      * @param n            width of matrix
      * @param outputFolder location for saving data
      * @param customPrefix optional file/folder prefix
      */
     public ABADataStack(int n, File outputFolder, String customPrefix) {
-        aggregateMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-        aggSupDiagNormedMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-        aggDiagNormedMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-
-        initializeGenomeWideVariables(n);
-        initializeDataSaveFolder(outputFolder, customPrefix);
+        this.n = n;
+        this.dataDirectory = initializeDataSaveFolder(outputFolder, customPrefix);
     }
 
     /**
@@ -71,39 +63,61 @@ public class ABADataStack {
      * @param outputFolderDirectory to directory
      * @param prefix                of files to be saved
      */
-    public static void initializeDataSaveFolder(File outputFolderDirectory, String prefix) {
+    private static File initializeDataSaveFolder(File outputFolderDirectory, String prefix) {
+        File directory;
         if (prefix.length() < 1) {// no preference specified
-            dataDirectory = new File(outputFolderDirectory,
+            directory = new File(outputFolderDirectory,
                     new SimpleDateFormat("yyyy.MM.dd.HH.mm").format(new Date()));
         } else {
-            dataDirectory = new File(outputFolderDirectory, prefix);
+            directory = new File(outputFolderDirectory, prefix);
         }
-        dataDirectory = HiCFileTools.createValidDirectory(dataDirectory.getAbsolutePath());
+        return HiCFileTools.createValidDirectory(directory.getAbsolutePath());
     }
 
-    private static void initializeGenomeWideVariables(int n) {
-        if (genomeWideVariablesNotSet) {
-            gwAggregateMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-            gwAggSupDiagNormedMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-            gwAggDiagNormedMatrix = MatrixTools.cleanArray2DMatrix(n, n);
-            genomeWideVariablesNotSet = false;
-        }
+    /**
+     * @return a new accumulator whose data will be included in the export;
+     * an accumulator should only be used by one thread at a time
+     */
+    public Accumulator createAccumulator() {
+        Accumulator accumulator = new Accumulator(n);
+        accumulators.add(accumulator);
+        return accumulator;
     }
 
-    public static void exportGenomeWideData(Integer numRegions, boolean saveAllData) {
+    public void exportGenomeWideData(Integer numRegions, boolean saveAllData) {
         double gwNPeaksUsedInv = 1. / numRegions;
-        gwAggSupDiagNormedMatrix = gwAggSupDiagNormedMatrix.scalarMultiply(gwNPeaksUsedInv);
-        gwAggDiagNormedMatrix = gwAggDiagNormedMatrix.scalarMultiply(gwNPeaksUsedInv);
+        double[][] aggregate = new double[n][n];
+        double[][] aggSupDiagNormed = new double[n][n];
+        double[][] aggDiagNormed = new double[n][n];
+
+        List<Accumulator> partials = new ArrayList<>(accumulators);
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int i = currRowIndex.getAndIncrement();
+            while (i < n) {
+                int offset = i * n;
+                for (Accumulator partial : partials) {
+                    for (int j = 0; j < n; j++) {
+                        aggregate[i][j] += partial.aggregate[offset + j];
+                        aggSupDiagNormed[i][j] += partial.aggSupDiagNormed[offset + j];
+                        aggDiagNormed[i][j] += partial.aggDiagNormed[offset + j];
+                    }
+                }
+                for (int j = 0; j < n; j++) {
+                    aggSupDiagNormed[i][j] *= gwNPeaksUsedInv;
+                    aggDiagNormed[i][j] *= gwNPeaksUsedInv;
+                }
+                i = currRowIndex.getAndIncrement();
+            }
+        });
 
-        RealMatrix[] matrices = {gwAggregateMatrix, gwAggSupDiagNormedMatrix, gwAggDiagNormedMatrix};
+        double[][][] matrices = {aggregate, aggSupDiagNormed, aggDiagNormed};
         String[] titles = {"ABA", "supDiagNormedABA", "diagNormedABA"};
 
         saveDataSet("gw", matrices, titles);
     }
 
-    private static void saveDataSet(String prefix,
-                                    RealMatrix[] matrices,
-                                    String[] titles) {
+    private void saveDataSet(String prefix, double[][][] matrices, String[] titles) {
 
         File subFolder = HiCFileTools.createValidDirectory(new File(dataDirectory, prefix).getAbsolutePath());
         if (MixerGlobals.printVerboseComments) {
@@ -113,63 +127,71 @@ public class ABADataStack {
         for (int i = 0; i < matrices.length; i++) {
             MatrixTools.saveMatrixTextNumpy(
                     (new File(subFolder, titles[i] + ".npy")).getAbsolutePath(),
-                    matrices[i].getData());
+                    matrices[i]);
         }
     }
 
-    public static void clearAllData() {
-        dataDirectory = null;
-        genomeWideVariablesNotSet = true;
-        gwAggregateMatrix = null;
-        gwAggSupDiagNormedMatrix = null;
-        gwAggDiagNormedMatrix = null;
-    }
-
-    public void addData(RealMatrix newData) {
-        MatrixTools.cleanUpNaNs(newData);
-        aggregateMatrix = aggregateMatrix.add(newData);
-        aggSupDiagNormedMatrix = aggSupDiagNormedMatrix.add(supDiagNormalization(newData));
-        aggDiagNormedMatrix = aggDiagNormedMatrix.add(diagNormalization(newData));
-    }
-
-    public synchronized void updateGenomeWideData() {
-        synchronized (key) {
-            gwAggregateMatrix = gwAggregateMatrix.add(aggregateMatrix);
-            gwAggSupDiagNormedMatrix = gwAggSupDiagNormedMatrix.add(aggSupDiagNormedMatrix);
-            gwAggDiagNormedMatrix = gwAggDiagNormedMatrix.add(aggDiagNormedMatrix);
+    /**
+     * flat, row-major running sums of the raw, sup-diagonal normalized, and diagonal normalized windows
+     */
+    public static class Accumulator {
+        private final int n;
+        private final double[] aggregate;
+        private final double[] aggSupDiagNormed;
+        private final double[] aggDiagNormed;
+
+        private Accumulator(int n) {
+            this.n = n;
+            aggregate = new double[n * n];
+            aggSupDiagNormed = new double[n * n];
+            aggDiagNormed = new double[n * n];
         }
-    }
-
-    private RealMatrix diagNormalization(RealMatrix matrix) {
-        return matrix.copy().scalarMultiply(1. / Math.max(1., diagonalMean(matrix.getData())));
-    }
 
-    private RealMatrix supDiagNormalization(RealMatrix matrix) {
-        return matrix.copy().scalarMultiply(1. / Math.max(1., supDiagonalMean(matrix.getData())));
-    }
+        /**
+         * adds the n x n window of data starting at (rowOffset, colOffset); NaNs are treated as zeros
+         */
+        public void addData(double[][] data, int rowOffset, int colOffset) {
+            double supDiagScale = 1. / Math.max(1., supDiagonalMean(data, rowOffset, colOffset));
+            double diagScale = 1. / Math.max(1., diagonalMean(data, rowOffset, colOffset));
+
+            for (int i = 0; i < n; i++) {
+                double[] row = data[rowOffset + i];
+                int offset = i * n;
+                for (int j = 0; j < n; j++) {
+                    double val = row[colOffset + j];
+                    if (!Double.isNaN(val)) {
+                        aggregate[offset + j] += val;
+                        aggSupDiagNormed[offset + j] += val * supDiagScale;
+                        aggDiagNormed[offset + j] += val * diagScale;
+                    }
+                }
+            }
+        }
 
-    private double supDiagonalMean(double[][] data) {
-        int counter = 0;
-        double accum = 0;
-        for (int i = 0; i < data.length - 1; i++) {
-            int j = i + 1;
-            if (data[i][j] > 0) {
-                accum += data[i][j];
-                counter++;
+        private double supDiagonalMean(double[][] data, int rowOffset, int colOffset) {
+            int counter = 0;
+            double accum = 0;
+            for (int i = 0; i < n - 1; i++) {
+                double val = data[rowOffset + i][colOffset + i + 1];
+                if (val > 0) {
+                    accum += val;
+                    counter++;
+                }
             }
+            return accum / Math.max(counter, 1);
         }
-        return accum / Math.max(counter, 1);
-    }
 
-    private double diagonalMean(double[][] data) {
-        int counter = 0;
-        double accum = 0;
-        for (int i = 0; i < data.length; i++) {
-            if (data[i][i] > 0) {
-                accum += data[i][i];
-                counter++;
+        private double diagonalMean(double[][] data, int rowOffset, int colOffset) {
+            int counter = 0;
+            double accum = 0;
+            for (int i = 0; i < n; i++) {
+                double val = data[rowOffset + i][colOffset + i];
+                if (val > 0) {
+                    accum += val;
+                    counter++;
+                }
             }
+            return accum / Math.max(counter, 1);
         }
-        return accum / Math.max(counter, 1);
     }
 }
@@ -27,40 +27,62 @@ package mixer.utils.bed;
 import javastraw.feature1D.GenomeWide1DList;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 import mixer.MixerGlobals;
 import mixer.utils.aba.ABADataStack;
 import mixer.utils.slice.structures.SimpleInterval;
-import org.apache.commons.math3.linear.RealMatrix;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 public class BedFile {
-    private final GenomeWide1DList<SimpleInterval> featureGenomeWide1DList;
+    private static final int MAX_BUFFER_WIDTH = 1000;
+    private final Map<Integer, int[]> sortedStartsForChromosome = new HashMap<>();
+    private final int numTotalFeatures;
 
+    /**
+     * parses the bed file once and indexes the sorted region starts by chromosome,
+     * so that it can be shared (read-only) by ABA runs at different resolutions
+     */
     public BedFile(String bedListPath, ChromosomeHandler handler) {
-        featureGenomeWide1DList = populateBedFile(handler, bedListPath);
+        GenomeWide1DList<SimpleInterval> featureGenomeWide1DList = populateBedFile(handler, bedListPath);
+        for (Chromosome chrom : handler.getChromosomeArrayWithoutAllByAll()) {
+            List<SimpleInterval> regions = featureGenomeWide1DList.getFeatures("" + chrom.getIndex());
+            if (regions != null && regions.size() > 0) {
+                int[] starts = new int[regions.size()];
+                for (int k = 0; k < starts.length; k++) {
+                    starts[k] = regions.get(k).getX1();
+                }
+                Arrays.sort(starts);
+                sortedStartsForChromosome.put(chrom.getIndex(), starts);
+            }
+        }
+        numTotalFeatures = featureGenomeWide1DList.size();
     }
 
-    public static RealMatrix extractLocalizedData(MatrixZoomData zd, SimpleInterval region, int overallWidth,
-                                                  int resolution, int window, NormalizationType norm) throws IOException {
-        long loopX = region.getX1() / resolution;
-        long binXStart = loopX - window;
-        long binXEnd = loopX + (window + 1);
-
-        return HiCFileTools.extractLocalBoundedRegion(zd, binXStart, binXEnd, binXStart, binXEnd, overallWidth, overallWidth,
-                norm, true);
+    /**
+     * @return width of the dense buffer used by doABAOnChrom for these zooms
+     */
+    public static int getBufferWidth(MatrixZoomData[] zds, int overallWidth) {
+        int blockBinCount = MAX_BUFFER_WIDTH;
+        for (MatrixZoomData zd : zds) {
+            blockBinCount = Math.min(blockBinCount, zd.getBlockBinCount());
+        }
+        return Math.max(overallWidth, blockBinCount);
     }
 
     public static GenomeWide1DList<SimpleInterval> populateBedFile(ChromosomeHandler handler, String bedFilePath) {
@@ -118,45 +140,152 @@ public class BedFile {
         return new ArrayList<>(positions);
     }
 
-    public void doABAOnChrom(Chromosome chrom, MatrixZoomData zd, File outputDirectory, int resolution,
-                             AtomicInteger numOfRegions, int overallWidth, int window, BedFile bedFile,
+    /**
+     * adds the window around each region on this chromosome to the accumulator,
+     * summed across the zooms of all the datasets being pooled
+     */
+    public void doABAOnChrom(Chromosome chrom, MatrixZoomData[] zds, int resolution, AtomicInteger numOfRegions,
+                             int overallWidth, int window, ABADataStack.Accumulator accumulator,
                              NormalizationType norm) {
-        ABADataStack dataStack = new ABADataStack(overallWidth, outputDirectory, "" + resolution);
         if (MixerGlobals.printVerboseComments) {
             System.out.println("CHR " + chrom.getName() + " " + chrom.getIndex());
         }
 
-        List<SimpleInterval> regions = bedFile.get(chrom.getIndex());
-        if (regions == null || regions.size() == 0) {
+        int[] starts = sortedStartsForChromosome.get(chrom.getIndex());
+        if (starts == null) {
             if (MixerGlobals.printVerboseComments) {
                 System.out.println("Chromosome " + chrom.getName() + " - no regions found");
             }
             return;
         }
 
-        numOfRegions.addAndGet(regions.size());
+        numOfRegions.addAndGet(starts.length);
+
+        // starts are sorted, so the centers are as well
+        long[] centers = new long[starts.length];
+        for (int k = 0; k < centers.length; k++) {
+            centers[k] = starts[k] / resolution;
+        }
+
+        // nearby regions share one buffer fill; the caches decode each block once for the whole sweep
+        int groupWidth = getBufferWidth(zds, overallWidth);
+        double[][] buffer = new double[groupWidth][groupWidth];
+        BlockCache[] caches = new BlockCache[zds.length];
+        for (int z = 0; z < zds.length; z++) {
+            caches[z] = new BlockCache(zds[z], norm);
+        }
+
+        int start = 0;
+        while (start < centers.length) {
+            long groupStart = centers[start] - window;
+            int end = start + 1;
+            while (end < centers.length && centers[end] + window + 1 - groupStart <= groupWidth) {
+                end++;
+            }
+            int width = (int) (centers[end - 1] + window + 1 - groupStart);
 
-        for (SimpleInterval region : regions) {
             try {
-                RealMatrix newData = extractLocalizedData(zd, region, overallWidth, resolution, window, norm);
-                dataStack.addData(newData);
-                //dataStack.addData(APAUtils.extractLocalizedData(zd, loop, L, resolution, window, norm));
+                fillBuffer(caches, buffer, groupStart, width);
+                for (int k = start; k < end; k++) {
+                    int offset = (int) (centers[k] - window - groupStart);
+                    accumulator.addData(buffer, offset, offset);
+                }
             } catch (Exception e) {
                 System.err.println(e.getMessage());
-                System.err.println("Unable to find data for loop: " + region);
+                System.err.println("Unable to find data for " + (end - start) + " regions starting at "
+                        + chrom.getName() + ":" + (centers[start] * resolution));
             }
+            start = end;
+        }
+    }
+
+    /**
+     * fills the top-left width x width corner of the buffer with the symmetric region
+     * [binStart, binStart + width) x [binStart, binStart + width), summed across all zooms
+     */
+    private static void fillBuffer(BlockCache[] caches, double[][] buffer, long binStart, int width)
+            throws IOException {
+        for (int i = 0; i < width; i++) {
+            Arrays.fill(buffer[i], 0, width, 0);
         }
 
-        dataStack.updateGenomeWideData();
-        //dataStack.exportDataSet(chrom.getName() + 'v' + chr2.getName(), peakNumbers);
+        long readStart = Math.max(0, binStart);
+        long readEnd = binStart + width;
+        if (readEnd <= readStart) return;
 
+        for (BlockCache cache : caches) {
+            cache.addToBuffer(buffer, binStart, readStart, readEnd, width);
+        }
     }
 
-    private List<SimpleInterval> get(int index) {
-        return featureGenomeWide1DList.getFeatures("" + index);
+    /**
+     * Decoded contacts of one zoom, kept per block-sized cell (i, j), i <= j, while doABAOnChrom
+     * sweeps the sorted regions. Group starts never decrease, so cells left of the current group
+     * are dropped and every cell is read from the file at most once per chromosome.
+     */
+    private static class BlockCache {
+        private final MatrixZoomData zd;
+        private final NormalizationType norm;
+        private final long blockBinCount;
+        private final Map<Long, List<ContactRecord>> cells = new HashMap<>();
+
+        BlockCache(MatrixZoomData zd, NormalizationType norm) {
+            this.zd = zd;
+            this.norm = norm;
+            this.blockBinCount = zd.getBlockBinCount();
+        }
+
+        void addToBuffer(double[][] buffer, long binStart, long readStart, long readEnd, int width)
+                throws IOException {
+            long firstCell = readStart / blockBinCount;
+            long lastCell = (readEnd - 1) / blockBinCount;
+            cells.keySet().removeIf(key -> (key >> 32) < firstCell);
+
+            for (long i = firstCell; i <= lastCell; i++) {
+                for (long j = i; j <= lastCell; j++) {
+                    for (ContactRecord cr : getCell(i, j)) {
+                        float counts = cr.getCounts();
+                        long x = cr.getBinX() - binStart;
+                        long y = cr.getBinY() - binStart;
+                        if (!Float.isNaN(counts) && x >= 0 && x < width && y >= 0 && y < width) {
+                            buffer[(int) x][(int) y] += counts;
+                            if (x != y) {
+                                buffer[(int) y][(int) x] += counts;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private List<ContactRecord> getCell(long i, long j) throws IOException {
+            long key = (i << 32) | j;
+            List<ContactRecord> records = cells.get(key);
+            if (records == null) {
+                records = new ArrayList<>();
+                long x0 = i * blockBinCount;
+                long y0 = j * blockBinCount;
+                List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd, x0, x0 + blockBinCount,
+                        y0, y0 + blockBinCount, norm, false);
+                for (Block b : blocks) {
+                    if (b != null) {
+                        for (ContactRecord cr : b.getContactRecords()) {
+                            // a record belongs to the cell of its (lower, upper) bin pair, so none is counted twice
+                            long lower = Math.min(cr.getBinX(), cr.getBinY()) / blockBinCount;
+                            long upper = Math.max(cr.getBinX(), cr.getBinY()) / blockBinCount;
+                            if (lower == i && upper == j) {
+                                records.add(cr);
+                            }
+                        }
+                    }
+                }
+                cells.put(key, records);
+            }
+            return records;
+        }
     }
 
     public int getNumTotalFeatures() {
-        return featureGenomeWide1DList.size();
+        return numTotalFeatures;
     }
 }
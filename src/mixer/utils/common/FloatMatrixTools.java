@@ -40,6 +40,8 @@ import java.util.List;
 @SuppressWarnings("ForLoopReplaceableByForEach")
 public class FloatMatrixTools {
 
+    public static final int MAX_PNG_DIMENSION = 8000;
+
     public static void inPlaceZscoreDownColsNoNan(float[][] matrix, int batchSize) {
         float[] colMeans = getColNonZeroMeansNonNan(matrix, batchSize);
         float[] colStdDevs = getColNonZeroStdDevNonNans(matrix, colMeans, batchSize);
@@ -143,6 +145,29 @@ public class FloatMatrixTools {
         return colMeans;
     }
 
+    /**
+     * @return mean of the non-NaN entries of each column; NaN for columns with no observed entries
+     */
+    public static float[] getColNanMeans(float[][] matrix) {
+        int numCols = matrix[0].length;
+        double[] sums = new double[numCols];
+        int[] counts = new int[numCols];
+        for (float[] row : matrix) {
+            for (int j = 0; j < numCols; j++) {
+                if (!Float.isNaN(row[j])) {
+                    sums[j] += row[j];
+                    counts[j]++;
+                }
+            }
+        }
+
+        float[] means = new float[numCols];
+        for (int j = 0; j < numCols; j++) {
+            means[j] = counts[j] > 0 ? (float) (sums[j] / counts[j]) : Float.NaN;
+        }
+        return means;
+    }
+
     public static void fill(float[][] allDataForRegion, float val) {
         for (int i = 0; i < allDataForRegion.length; i++) {
             Arrays.fill(allDataForRegion[i], val);
@@ -218,6 +243,13 @@ public class FloatMatrixTools {
     }
 
     public static void saveMatrixToPNG(File file, float[][] matrix, boolean useLog) {
+        saveMatrixToPNG(file, matrix, useLog, false);
+    }
+
+    /**
+     * matrices bigger than MAX_PNG_DIMENSION on a side are pooled down rather than drawn at full size
+     */
+    public static void saveMatrixToPNG(File file, float[][] matrix, boolean useLog, boolean useMaxPooling) {
         double range = getMaxVal(matrix);
         double minVal = 0;
         if (useLog) {
@@ -225,22 +257,46 @@ public class FloatMatrixTools {
             range = Math.log(1 + range) - minVal;
         }
 
-        BufferedImage image = new BufferedImage(matrix[0].length, matrix.length, BufferedImage.TYPE_INT_RGB);
-        for (int i = 0; i < matrix.length; i++) {
-            for (int j = 0; j < matrix[0].length; j++) {
-                if (useLog) {
-                    image.setRGB(j, i, mixColors((Math.log(1 + matrix[i][j]) - minVal) / range));
-                } else {
-                    image.setRGB(j, i, mixColors(matrix[i][j] / range));
-                }
+        // one pooling factor for both axes keeps the aspect ratio
+        int longestSide = Math.max(matrix.length, matrix[0].length);
+        int poolFactor = (longestSide + MAX_PNG_DIMENSION - 1) / MAX_PNG_DIMENSION;
+        int width = (matrix[0].length + poolFactor - 1) / poolFactor;
+        int height = (matrix.length + poolFactor - 1) / poolFactor;
+        final double finalRange = range;
+        final double finalMinVal = minVal;
+        int[] pixels = TileRenderer.renderMatrix(matrix, width, height, useMaxPooling, val -> {
+            if (useLog) {
+                return mixColors((Math.log(1 + val) - finalMinVal) / finalRange);
             }
-        }
+            return mixColors(val / finalRange);
+        });
+        TileRenderer.savePNG(file, pixels, width, height, BufferedImage.TYPE_INT_RGB);
+    }
 
-        try {
-            ImageIO.write(image, "png", file);
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * same coloring as saveMatrixToPNG, written as a zoomable directory of tiles
+     */
+    public static void saveMatrixToTilePyramid(File directory, float[][] matrix, boolean useLog) {
+        double range = getMaxVal(matrix);
+        double minVal = 0;
+        if (useLog) {
+            minVal = Math.log(1 + getMinVal(matrix));
+            range = Math.log(1 + range) - minVal;
         }
+
+        final double finalRange = range;
+        final double finalMinVal = minVal;
+        TilePyramidExporter.export(matrix, directory, false, val -> {
+            if (useLog) {
+                return mixColors((Math.log(1 + val) - finalMinVal) / finalRange);
+            }
+            return mixColors(val / finalRange);
+        });
+    }
+
+    public static void saveOEMatrixToTilePyramid(File directory, float[][] matrix) {
+        double max = LogTools.getMaxAbsLogVal(matrix);
+        TilePyramidExporter.export(matrix, directory, false, val -> mixOEColors(Math.log(val), max));
     }
 
     public static void saveOEMatrixToPNG(File file, float[][] matrix) {
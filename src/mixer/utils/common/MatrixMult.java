@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.common;
+
+import mixer.clt.ParallelizedMixerTools;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dense matrix multiplication C = A * B.
+ * B is packed transposed so that every inner product walks two contiguous rows;
+ * work is tiled over (rows of A) x (columns of B) x (shared dimension) to stay in cache,
+ * and the innermost kernel computes a 2 x 4 block of C in registers.
+ */
+public class MatrixMult {
+
+    private static final int ROW_BLOCK = 32;
+    private static final int COL_TILE = 128;
+    private static final int DEPTH_TILE = 256;
+    private static final long MIN_PARALLEL_WORK = 1L << 20;
+
+    public static float[][] multiply(float[][] a, float[][] b) {
+        if (a.length == 0 || b.length == 0) {
+            throw new IllegalArgumentException("Cannot multiply empty matrices");
+        }
+        checkSharedDimension(a[0].length, b.length);
+        return multiplyByTransposed(a, packTransposed(b));
+    }
+
+    public static double[][] multiply(double[][] a, double[][] b) {
+        if (a.length == 0 || b.length == 0) {
+            throw new IllegalArgumentException("Cannot multiply empty matrices");
+        }
+        checkSharedDimension(a[0].length, b.length);
+        return multiplyByTransposed(a, packTransposed(b));
+    }
+
+    /**
+     * @param bt B already stored transposed (i.e. one row per column of B)
+     * @return A * B
+     */
+    public static float[][] multiplyByTransposed(float[][] a, float[][] bt) {
+        int numRows = a.length;
+        int numCols = bt.length;
+        float[][] result = new float[numRows][numCols];
+        if (numRows == 0 || numCols == 0) return result;
+        checkSharedDimension(a[0].length, bt[0].length);
+
+        int numBlocks = (numRows + ROW_BLOCK - 1) / ROW_BLOCK;
+        if ((long) numRows * numCols * a[0].length < MIN_PARALLEL_WORK) {
+            multiplyRows(a, bt, result, 0, numRows);
+        } else {
+            AtomicInteger currBlock = new AtomicInteger(0);
+            ParallelizedMixerTools.launchParallelizedCode(() -> {
+                int block = currBlock.getAndIncrement();
+                while (block < numBlocks) {
+                    int start = block * ROW_BLOCK;
+                    multiplyRows(a, bt, result, start, Math.min(start + ROW_BLOCK, numRows));
+                    block = currBlock.getAndIncrement();
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * @param bt B already stored transposed (i.e. one row per column of B)
+     * @return A * B
+     */
+    public static double[][] multiplyByTransposed(double[][] a, double[][] bt) {
+        int numRows = a.length;
+        int numCols = bt.length;
+        double[][] result = new double[numRows][numCols];
+        if (numRows == 0 || numCols == 0) return result;
+        checkSharedDimension(a[0].length, bt[0].length);
+
+        int numBlocks = (numRows + ROW_BLOCK - 1) / ROW_BLOCK;
+        if ((long) numRows * numCols * a[0].length < MIN_PARALLEL_WORK) {
+            multiplyRows(a, bt, result, 0, numRows);
+        } else {
+            AtomicInteger currBlock = new AtomicInteger(0);
+            ParallelizedMixerTools.launchParallelizedCode(() -> {
+                int block = currBlock.getAndIncrement();
+                while (block < numBlocks) {
+                    int start = block * ROW_BLOCK;
+                    multiplyRows(a, bt, result, start, Math.min(start + ROW_BLOCK, numRows));
+                    block = currBlock.getAndIncrement();
+                }
+            });
+        }
+        return result;
+    }
+
+    private static void multiplyRows(float[][] a, float[][] bt, float[][] c, int rowStart, int rowEnd) {
+        int numCols = bt.length;
+        int depth = a[0].length;
+        for (int k0 = 0; k0 < depth; k0 += DEPTH_TILE) {
+            int k1 = Math.min(k0 + DEPTH_TILE, depth);
+            for (int j0 = 0; j0 < numCols; j0 += COL_TILE) {
+                int j1 = Math.min(j0 + COL_TILE, numCols);
+                int i = rowStart;
+                for (; i + 1 < rowEnd; i += 2) {
+                    float[] a0 = a[i], a1 = a[i + 1];
+                    float[] c0 = c[i], c1 = c[i + 1];
+                    int j = j0;
+                    for (; j + 3 < j1; j += 4) {
+                        float[] b0 = bt[j], b1 = bt[j + 1], b2 = bt[j + 2], b3 = bt[j + 3];
+                        float s00 = 0, s01 = 0, s02 = 0, s03 = 0;
+                        float s10 = 0, s11 = 0, s12 = 0, s13 = 0;
+                        for (int k = k0; k < k1; k++) {
+                            float x0 = a0[k], x1 = a1[k];
+                            float y0 = b0[k], y1 = b1[k], y2 = b2[k], y3 = b3[k];
+                            s00 += x0 * y0;
+                            s01 += x0 * y1;
+                            s02 += x0 * y2;
+                            s03 += x0 * y3;
+                            s10 += x1 * y0;
+                            s11 += x1 * y1;
+                            s12 += x1 * y2;
+                            s13 += x1 * y3;
+                        }
+                        c0[j] += s00;
+                        c0[j + 1] += s01;
+                        c0[j + 2] += s02;
+                        c0[j + 3] += s03;
+                        c1[j] += s10;
+                        c1[j + 1] += s11;
+                        c1[j + 2] += s12;
+                        c1[j + 3] += s13;
+                    }
+                    for (; j < j1; j++) {
+                        c0[j] += dot(a0, bt[j], k0, k1);
+                        c1[j] += dot(a1, bt[j], k0, k1);
+                    }
+                }
+                for (; i < rowEnd; i++) {
+                    for (int j = j0; j < j1; j++) {
+                        c[i][j] += dot(a[i], bt[j], k0, k1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void multiplyRows(double[][] a, double[][] bt, double[][] c, int rowStart, int rowEnd) {
+        int numCols = bt.length;
+        int depth = a[0].length;
+        for (int k0 = 0; k0 < depth; k0 += DEPTH_TILE) {
+            int k1 = Math.min(k0 + DEPTH_TILE, depth);
+            for (int j0 = 0; j0 < numCols; j0 += COL_TILE) {
+                int j1 = Math.min(j0 + COL_TILE, numCols);
+                int i = rowStart;
+                for (; i + 1 < rowEnd; i += 2) {
+                    double[] a0 = a[i], a1 = a[i + 1];
+                    double[] c0 = c[i], c1 = c[i + 1];
+                    int j = j0;
+                    for (; j + 3 < j1; j += 4) {
+                        double[] b0 = bt[j], b1 = bt[j + 1], b2 = bt[j + 2], b3 = bt[j + 3];
+                        double s00 = 0, s01 = 0, s02 = 0, s03 = 0;
+                        double s10 = 0, s11 = 0, s12 = 0, s13 = 0;
+                        for (int k = k0; k < k1; k++) {
+                            double x0 = a0[k], x1 = a1[k];
+                            double y0 = b0[k], y1 = b1[k], y2 = b2[k], y3 = b3[k];
+                            s00 += x0 * y0;
+                            s01 += x0 * y1;
+                            s02 += x0 * y2;
+                            s03 += x0 * y3;
+                            s10 += x1 * y0;
+                            s11 += x1 * y1;
+                            s12 += x1 * y2;
+                            s13 += x1 * y3;
+                        }
+                        c0[j] += s00;
+                        c0[j + 1] += s01;
+                        c0[j + 2] += s02;
+                        c0[j + 3] += s03;
+                        c1[j] += s10;
+                        c1[j + 1] += s11;
+                        c1[j + 2] += s12;
+                        c1[j + 3] += s13;
+                    }
+                    for (; j < j1; j++) {
+                        c0[j] += dot(a0, bt[j], k0, k1);
+                        c1[j] += dot(a1, bt[j], k0, k1);
+                    }
+                }
+                for (; i < rowEnd; i++) {
+                    for (int j = j0; j < j1; j++) {
+                        c[i][j] += dot(a[i], bt[j], k0, k1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static float dot(float[] x, float[] y, int start, int end) {
+        float total = 0;
+        for (int k = start; k < end; k++) {
+            total += x[k] * y[k];
+        }
+        return total;
+    }
+
+    private static double dot(double[] x, double[] y, int start, int end) {
+        double total = 0;
+        for (int k = start; k < end; k++) {
+            total += x[k] * y[k];
+        }
+        return total;
+    }
+
+    private static void checkSharedDimension(int numACols, int numBRows) {
+        if (numACols != numBRows) {
+            throw new IllegalArgumentException("Matrix dimensions do not match: "
+                    + numACols + " columns in A vs " + numBRows + " rows in B");
+        }
+    }
+
+    private static float[][] packTransposed(float[][] matrix) {
+        float[][] packed = new float[matrix[0].length][matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                packed[j][i] = matrix[i][j];
+            }
+        }
+        return packed;
+    }
+
+    private static double[][] packTransposed(double[][] matrix) {
+        double[][] packed = new double[matrix[0].length][matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                packed[j][i] = matrix[i][j];
+            }
+        }
+        return packed;
+    }
+}
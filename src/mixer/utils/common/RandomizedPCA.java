@@ -0,0 +1,202 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.common;
+
+import mixer.clt.ParallelizedMixerTools;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PCA of a matrix with missing values via randomized SVD (Halko, Martinsson, Tropp).
+ * Columns are centered on their non-NaN mean and missing entries are set to that mean,
+ * so they add nothing to the variance. The range of the data is found with a few power
+ * iterations of blocked products against a thin random sketch, and only the small
+ * sketch-sized problem is solved exactly.
+ */
+public class RandomizedPCA {
+
+    private static final int OVERSAMPLING = 10;
+    private static final int NUM_POWER_ITERATIONS = 3;
+
+    private final float[][] scores;
+    private final double[] explainedVarianceRatio;
+
+    /**
+     * @param data                 n x d, may contain NaNs; not modified
+     * @param maxComponents        upper bound on the number of components kept
+     * @param varianceFraction     keep the fewest components whose explained variance reaches this fraction
+     * @param seed                 for the random sketch
+     */
+    public RandomizedPCA(float[][] data, int maxComponents, double varianceFraction, long seed) {
+        int numCols = data[0].length;
+        int sketchSize = Math.min(Math.min(data.length, numCols), maxComponents + OVERSAMPLING);
+
+        float[][] centered = getCenteredMatrix(data);
+        float[][] centeredT = transpose(centered);
+        double totalVariance = getSumOfSquares(centered);
+
+        float[][] qt = orthonormalRows(transpose(MatrixMult.multiplyByTransposed(centered,
+                getGaussianMatrix(sketchSize, numCols, seed))));
+        for (int p = 0; p < NUM_POWER_ITERATIONS; p++) {
+            float[][] b = MatrixMult.multiplyByTransposed(qt, centeredT);
+            qt = orthonormalRows(transpose(MatrixMult.multiplyByTransposed(centered, b)));
+        }
+
+        // B = Q^T X is sketchSize x d; its left singular vectors come from the small Gram matrix B B^T
+        float[][] b = MatrixMult.multiplyByTransposed(qt, centeredT);
+        double[][] gram = toDouble(MatrixMult.multiplyByTransposed(b, b));
+        EigenDecomposition decomposition = new EigenDecomposition(new Array2DRowRealMatrix(gram));
+        double[] eigenvalues = decomposition.getRealEigenvalues(); // descending
+        RealMatrix eigenvectors = decomposition.getV();
+
+        int numComponents = getNumComponents(eigenvalues, totalVariance, maxComponents, varianceFraction);
+        explainedVarianceRatio = new double[numComponents];
+        float[][] rotation = new float[numComponents][qt.length];
+        for (int c = 0; c < numComponents; c++) {
+            double singularValue = Math.sqrt(Math.max(eigenvalues[c], 0));
+            explainedVarianceRatio[c] = eigenvalues[c] / totalVariance;
+            for (int m = 0; m < qt.length; m++) {
+                rotation[c][m] = (float) (eigenvectors.getEntry(m, c) * singularValue);
+            }
+        }
+
+        // scores = X V = Q U S
+        scores = MatrixMult.multiplyByTransposed(transpose(qt), rotation);
+    }
+
+    public float[][] getScores() {
+        return scores;
+    }
+
+    public double[] getExplainedVarianceRatio() {
+        return explainedVarianceRatio;
+    }
+
+    private static int getNumComponents(double[] eigenvalues, double totalVariance, int maxComponents,
+                                        double varianceFraction) {
+        int limit = Math.min(maxComponents, eigenvalues.length);
+        double cumulative = 0;
+        for (int c = 0; c < limit; c++) {
+            cumulative += Math.max(eigenvalues[c], 0);
+            if (cumulative >= varianceFraction * totalVariance) {
+                return c + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static float[][] getCenteredMatrix(float[][] data) {
+        int numCols = data[0].length;
+        // NaN entries are left at 0, so a column with no observed values never reads its mean
+        float[] means = FloatMatrixTools.getColNanMeans(data);
+
+        float[][] centered = new float[data.length][numCols];
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int i = currRowIndex.getAndIncrement();
+            while (i < data.length) {
+                for (int j = 0; j < numCols; j++) {
+                    if (!Float.isNaN(data[i][j])) {
+                        centered[i][j] = data[i][j] - means[j];
+                    }
+                }
+                i = currRowIndex.getAndIncrement();
+            }
+        });
+        return centered;
+    }
+
+    private static double getSumOfSquares(float[][] matrix) {
+        double total = 0;
+        for (float[] row : matrix) {
+            for (float val : row) {
+                total += val * val;
+            }
+        }
+        return total;
+    }
+
+    private static float[][] getGaussianMatrix(int numRows, int numCols, long seed) {
+        Random generator = new Random(seed);
+        float[][] matrix = new float[numRows][numCols];
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numCols; j++) {
+                matrix[i][j] = (float) generator.nextGaussian();
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * modified Gram-Schmidt over the rows, i.e. the columns of Q
+     */
+    private static float[][] orthonormalRows(float[][] rows) {
+        for (int r = 0; r < rows.length; r++) {
+            for (int prev = 0; prev < r; prev++) {
+                double dot = dot(rows[r], rows[prev]);
+                for (int j = 0; j < rows[r].length; j++) {
+                    rows[r][j] -= dot * rows[prev][j];
+                }
+            }
+            double norm = Math.sqrt(dot(rows[r], rows[r]));
+            for (int j = 0; j < rows[r].length; j++) {
+                rows[r][j] = norm > 0 ? (float) (rows[r][j] / norm) : 0;
+            }
+        }
+        return rows;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double total = 0;
+        for (int j = 0; j < a.length; j++) {
+            total += a[j] * b[j];
+        }
+        return total;
+    }
+
+    private static float[][] transpose(float[][] matrix) {
+        float[][] result = new float[matrix[0].length][matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                result[j][i] = matrix[i][j];
+            }
+        }
+        return result;
+    }
+
+    private static double[][] toDouble(float[][] matrix) {
+        double[][] result = new double[matrix.length][matrix[0].length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[i].length; j++) {
+                result[i][j] = matrix[i][j];
+            }
+        }
+        return result;
+    }
+}
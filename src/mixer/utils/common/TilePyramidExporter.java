@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.common;
+
+import mixer.clt.ParallelizedMixerTools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleToIntFunction;
+
+/**
+ * Writes a matrix as a pyramid of TILE_SIZE x TILE_SIZE PNG tiles, laid out as
+ * directory/zoom/row_col.png. The deepest zoom is the matrix at full resolution and each
+ * level above it is pooled 2x2 from the one below, down to zoom 0 which fits in a single tile.
+ * Only the pooled values of the current level are kept; every tile is colored and written
+ * as soon as it is ready, so no full-size image is ever built.
+ */
+public class TilePyramidExporter {
+
+    private static final int TILE_SIZE = TileRenderer.TILE_SIZE;
+
+    public static void export(float[][] matrix, File directory, boolean useMaxPooling,
+                              DoubleToIntFunction colorMap) {
+        int maxZoom = getMaxZoom(matrix.length, matrix[0].length);
+        directory.mkdirs();
+        writeDescription(directory, matrix.length, matrix[0].length, maxZoom);
+
+        float[][] level = matrix;
+        for (int zoom = maxZoom; zoom >= 0; zoom--) {
+            File zoomFolder = new File(directory, String.valueOf(zoom));
+            zoomFolder.mkdirs();
+            writeTiles(level, zoomFolder, colorMap);
+            if (zoom > 0) {
+                level = poolByTwo(level, useMaxPooling);
+            }
+        }
+    }
+
+    private static int getMaxZoom(int numRows, int numCols) {
+        int zoom = 0;
+        int size = TILE_SIZE;
+        while (size < numRows || size < numCols) {
+            size *= 2;
+            zoom++;
+        }
+        return zoom;
+    }
+
+    private static void writeTiles(float[][] level, File zoomFolder, DoubleToIntFunction colorMap) {
+        int numRows = level.length;
+        int numCols = level[0].length;
+        int tilesX = (numCols + TILE_SIZE - 1) / TILE_SIZE;
+        int numTiles = tilesX * ((numRows + TILE_SIZE - 1) / TILE_SIZE);
+
+        AtomicInteger tileIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int t = tileIndex.getAndIncrement();
+            while (t < numTiles) {
+                int tileRow = t / tilesX;
+                int tileCol = t % tilesX;
+                int r0 = tileRow * TILE_SIZE;
+                int c0 = tileCol * TILE_SIZE;
+                int height = Math.min(TILE_SIZE, numRows - r0);
+                int width = Math.min(TILE_SIZE, numCols - c0);
+
+                int[] pixels = new int[width * height];
+                for (int i = 0; i < height; i++) {
+                    for (int j = 0; j < width; j++) {
+                        pixels[i * width + j] = colorMap.applyAsInt(level[r0 + i][c0 + j]);
+                    }
+                }
+                TileRenderer.savePNG(new File(zoomFolder, tileRow + "_" + tileCol + ".png"),
+                        pixels, width, height, BufferedImage.TYPE_INT_RGB);
+                t = tileIndex.getAndIncrement();
+            }
+        });
+    }
+
+    /**
+     * each entry of the result pools (max or NaN-skipping mean) a 2x2 block of the input
+     */
+    private static float[][] poolByTwo(float[][] level, boolean useMaxPooling) {
+        int numRows = (level.length + 1) / 2;
+        int numCols = (level[0].length + 1) / 2;
+        float[][] pooled = new float[numRows][numCols];
+
+        AtomicInteger rowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int i = rowIndex.getAndIncrement();
+            while (i < numRows) {
+                int rEnd = Math.min(2 * i + 2, level.length);
+                for (int j = 0; j < numCols; j++) {
+                    int cEnd = Math.min(2 * j + 2, level[0].length);
+                    float result = useMaxPooling ? Float.NEGATIVE_INFINITY : 0;
+                    int count = 0;
+                    for (int r = 2 * i; r < rEnd; r++) {
+                        for (int c = 2 * j; c < cEnd; c++) {
+                            float val = level[r][c];
+                            if (Float.isNaN(val)) continue;
+                            if (useMaxPooling) {
+                                result = Math.max(result, val);
+                            } else {
+                                result += val;
+                            }
+                            count++;
+                        }
+                    }
+                    if (count == 0) {
+                        pooled[i][j] = Float.NaN;
+                    } else {
+                        pooled[i][j] = useMaxPooling ? result : result / count;
+                    }
+                }
+                i = rowIndex.getAndIncrement();
+            }
+        });
+        return pooled;
+    }
+
+    private static void writeDescription(File directory, int numRows, int numCols, int maxZoom) {
+        try (FileWriter writer = new FileWriter(new File(directory, "pyramid.txt"))) {
+            writer.write("rows\t" + numRows + "\n");
+            writer.write("cols\t" + numCols + "\n");
+            writer.write("tile_size\t" + TILE_SIZE + "\n");
+            writer.write("max_zoom\t" + maxZoom + "\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.common;
+
+import mixer.clt.ParallelizedMixerTools;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleToIntFunction;
+import java.util.function.IntConsumer;
+
+/**
+ * Rasterizes plots straight into packed int[] pixels, one TILE_SIZE x TILE_SIZE tile per task,
+ * instead of drawing through Graphics2D on a single thread.
+ */
+public class TileRenderer {
+
+    public static final int TILE_SIZE = 256;
+    private static ExecutorService pool = null;
+
+    /**
+     * Draws filled circles with src-over blending onto an opaque background.
+     * Points are composited in the given order, so overlaps look the same as sequential drawing.
+     *
+     * @param colors ARGB color per point
+     */
+    public static int[] renderCircles(int width, int height, int background, float[] xs, float[] ys,
+                                      int[] colors, int diameter) {
+        int[] pixels = new int[width * height];
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int numTiles = tilesX * tilesY;
+
+        // bucket point indices by the tiles their bounding box touches, keeping point order
+        int[] tileStart = new int[numTiles + 1];
+        for (int p = 0; p < xs.length; p++) {
+            forEachTile(xs[p], ys[p], diameter, width, height, tilesX, tile -> tileStart[tile + 1]++);
+        }
+        for (int t = 0; t < numTiles; t++) {
+            tileStart[t + 1] += tileStart[t];
+        }
+        int[] tilePoints = new int[tileStart[numTiles]];
+        int[] fill = new int[numTiles];
+        for (int p = 0; p < xs.length; p++) {
+            final int point = p;
+            forEachTile(xs[p], ys[p], diameter, width, height, tilesX,
+                    tile -> tilePoints[tileStart[tile] + fill[tile]++] = point);
+        }
+
+        double radius = diameter / 2.0;
+        runOnSharedPool(numTiles, t -> {
+            int x0 = (t % tilesX) * TILE_SIZE;
+            int y0 = (t / tilesX) * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, width);
+            int y1 = Math.min(y0 + TILE_SIZE, height);
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    pixels[y * width + x] = background;
+                }
+            }
+            for (int k = tileStart[t]; k < tileStart[t + 1]; k++) {
+                int p = tilePoints[k];
+                double cx = (int) (xs[p] - radius) + radius;
+                double cy = (int) (ys[p] - radius) + radius;
+                int minX = Math.max(x0, (int) Math.floor(cx - radius));
+                int maxX = Math.min(x1, (int) Math.ceil(cx + radius));
+                int minY = Math.max(y0, (int) Math.floor(cy - radius));
+                int maxY = Math.min(y1, (int) Math.ceil(cy + radius));
+                for (int y = minY; y < maxY; y++) {
+                    double dy = y + 0.5 - cy;
+                    for (int x = minX; x < maxX; x++) {
+                        double dx = x + 0.5 - cx;
+                        if (dx * dx + dy * dy <= radius * radius) {
+                            pixels[y * width + x] = blend(colors[p], pixels[y * width + x]);
+                        }
+                    }
+                }
+            }
+        });
+        return pixels;
+    }
+
+    /**
+     * Colors a matrix onto a width x height canvas. When the matrix is larger than the canvas,
+     * each pixel pools the block of entries it covers (max or NaN-skipping mean) before coloring.
+     */
+    public static int[] renderMatrix(float[][] matrix, int width, int height, boolean useMaxPooling,
+                                     DoubleToIntFunction colorMap) {
+        int numRows = matrix.length;
+        int numCols = matrix[0].length;
+        int[] pixels = new int[width * height];
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int numTiles = tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE);
+
+        runOnSharedPool(numTiles, t -> {
+            int x0 = (t % tilesX) * TILE_SIZE;
+            int y0 = (t / tilesX) * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, width);
+            int y1 = Math.min(y0 + TILE_SIZE, height);
+            for (int y = y0; y < y1; y++) {
+                int rStart = (int) ((long) y * numRows / height);
+                int rEnd = Math.max(rStart + 1, (int) ((long) (y + 1) * numRows / height));
+                for (int x = x0; x < x1; x++) {
+                    int cStart = (int) ((long) x * numCols / width);
+                    int cEnd = Math.max(cStart + 1, (int) ((long) (x + 1) * numCols / width));
+                    pixels[y * width + x] = colorMap.applyAsInt(
+                            pool(matrix, rStart, rEnd, cStart, cEnd, useMaxPooling));
+                }
+            }
+        });
+        return pixels;
+    }
+
+    /**
+     * Runs task(0..numTasks-1) on one bounded pool shared by every render, so independent plots
+     * can be submitted together without nesting pools. The calling thread claims tasks too, which
+     * lets a task that is itself running on the pool (a plot rendering its tiles) always finish.
+     */
+    public static void runOnSharedPool(int numTasks, IntConsumer task) {
+        if (numTasks < 1) return;
+        AtomicInteger taskIndex = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(numTasks);
+        Runnable worker = () -> {
+            int i = taskIndex.getAndIncrement();
+            while (i < numTasks) {
+                try {
+                    task.accept(i);
+                } finally {
+                    done.countDown();
+                }
+                i = taskIndex.getAndIncrement();
+            }
+        };
+
+        ExecutorService executor = getPool();
+        int numHelpers = Math.min(numTasks, ParallelizedMixerTools.getNumThreads()) - 1;
+        for (int h = 0; h < numHelpers; h++) {
+            executor.execute(worker);
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            System.err.println("Thread Interruption");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(ParallelizedMixerTools.getNumThreads(), runnable -> {
+                Thread thread = new Thread(runnable, "tile-renderer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    public static void savePNG(File file, int[] pixels, int width, int height, int imageType) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        try {
+            ImageIO.write(image, "png", file);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double pool(float[][] matrix, int rStart, int rEnd, int cStart, int cEnd, boolean useMax) {
+        double result = useMax ? Double.NEGATIVE_INFINITY : 0;
+        int count = 0;
+        for (int i = rStart; i < rEnd; i++) {
+            for (int j = cStart; j < cEnd; j++) {
+                float val = matrix[i][j];
+                if (Float.isNaN(val)) continue;
+                if (useMax) {
+                    result = Math.max(result, val);
+                } else {
+                    result += val;
+                }
+                count++;
+            }
+        }
+        if (count == 0) return Double.NaN;
+        return useMax ? result : result / count;
+    }
+
+    private static int blend(int src, int dst) {
+        int alpha = src >>> 24;
+        int inverse = 255 - alpha;
+        int r = (((src >> 16) & 0xff) * alpha + ((dst >> 16) & 0xff) * inverse) / 255;
+        int g = (((src >> 8) & 0xff) * alpha + ((dst >> 8) & 0xff) * inverse) / 255;
+        int b = ((src & 0xff) * alpha + (dst & 0xff) * inverse) / 255;
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private interface TileConsumer {
+        void accept(int tile);
+    }
+
+    private static void forEachTile(float px, float py, int diameter, int width, int height, int tilesX,
+                                    TileConsumer consumer) {
+        double radius = diameter / 2.0;
+        int minX = Math.max(0, (int) (px - radius));
+        int minY = Math.max(0, (int) (py - radius));
+        int maxX = Math.min(width - 1, (int) (px - radius) + diameter);
+        int maxY = Math.min(height - 1, (int) (py - radius) + diameter);
+        if (minX > maxX || minY > maxY) return;
+        for (int ty = minY / TILE_SIZE; ty <= maxY / TILE_SIZE; ty++) {
+            for (int tx = minX / TILE_SIZE; tx <= maxX / TILE_SIZE; tx++) {
+                consumer.accept(ty * tilesX + tx);
+            }
+        }
+    }
+}
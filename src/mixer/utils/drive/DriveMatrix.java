@@ -26,6 +26,7 @@ package mixer.utils.drive;
 
 import javastraw.feature1D.GenomeWide1DList;
 import mixer.MixerGlobals;
+import mixer.utils.knn.KNNGraph;
 import mixer.utils.slice.structures.SliceUtils;
 import mixer.utils.slice.structures.SubcompartmentInterval;
 import robust.concurrent.kmeans.clustering.Cluster;
@@ -80,4 +81,11 @@ public abstract class DriveMatrix {
     }
 
     abstract public void inPlaceScaleSqrtWeightCol();
+
+    /**
+     * @return kNN graph over the rows of the data, or null if this matrix does not build one
+     */
+    public KNNGraph getKNNGraph() {
+        return null;
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.knn;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * k-nearest-neighbor graph stored as flat arrays: the neighbors of row i occupy
+ * [i * k, (i + 1) * k) of both arrays, sorted by increasing distance; missing neighbors are -1
+ */
+public class KNNGraph {
+    private static final int MAGIC = 0x4B4E4E47; // "KNNG"
+    private final int numRows;
+    private final int k;
+    private final int[] neighbors;
+    private final float[] distances;
+
+    public KNNGraph(int numRows, int k, int[] neighbors, float[] distances) {
+        this.numRows = numRows;
+        this.k = k;
+        this.neighbors = neighbors;
+        this.distances = distances;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getNeighbor(int row, int rank) {
+        return neighbors[row * k + rank];
+    }
+
+    public float getDistance(int row, int rank) {
+        return distances[row * k + rank];
+    }
+
+    /**
+     * @return valid neighbors of the row, nearest first
+     */
+    public int[] getNeighbors(int row) {
+        int start = row * k;
+        int count = 0;
+        while (count < k && neighbors[start + count] > -1) {
+            count++;
+        }
+        return Arrays.copyOfRange(neighbors, start, start + count);
+    }
+
+    /**
+     * graph over the remaining rows, renumbered in order; edges to removed rows are dropped,
+     * so rows may end up with fewer than k valid neighbors
+     */
+    public KNNGraph withoutRows(Set<Integer> removedRows) {
+        int[] newIndex = new int[numRows];
+        int counter = 0;
+        for (int i = 0; i < numRows; i++) {
+            newIndex[i] = removedRows.contains(i) ? -1 : counter++;
+        }
+
+        int[] newNeighbors = new int[counter * k];
+        float[] newDistances = new float[counter * k];
+        Arrays.fill(newNeighbors, -1);
+        for (int i = 0; i < numRows; i++) {
+            if (newIndex[i] < 0) continue;
+            int start = newIndex[i] * k;
+            int count = 0;
+            for (int r = 0; r < k; r++) {
+                int neighbor = getNeighbor(i, r);
+                if (neighbor > -1 && newIndex[neighbor] > -1) {
+                    newNeighbors[start + count] = newIndex[neighbor];
+                    newDistances[start + count] = getDistance(i, r);
+                    count++;
+                }
+            }
+        }
+        return new KNNGraph(counter, k, newNeighbors, newDistances);
+    }
+
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numRows);
+            out.writeInt(k);
+            for (int neighbor : neighbors) {
+                out.writeInt(neighbor);
+            }
+            for (float distance : distances) {
+                out.writeFloat(distance);
+            }
+        }
+    }
+
+    public static KNNGraph load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a kNN graph file: " + file.getAbsolutePath());
+            }
+            int numRows = in.readInt();
+            int k = in.readInt();
+            int[] neighbors = new int[numRows * k];
+            float[] distances = new float[numRows * k];
+            for (int i = 0; i < neighbors.length; i++) {
+                neighbors[i] = in.readInt();
+            }
+            for (int i = 0; i < distances.length; i++) {
+                distances[i] = in.readFloat();
+            }
+            return new KNNGraph(numRows, k, neighbors, distances);
+        }
+    }
+}
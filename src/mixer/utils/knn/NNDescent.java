@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.knn;
+
+import mixer.MixerGlobals;
+import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.similaritymeasures.RobustEuclideanDistance;
+import mixer.utils.similaritymeasures.SimilarityMetric;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Approximate kNN graph via nearest neighbor descent (Dong et al. 2011), initialized from
+ * a random projection forest. Distances are NaN-aware, so the raw SLICE matrix can be used directly.
+ */
+public class NNDescent {
+    private static final int NUM_TREES = 8;
+    private static final int MAX_ITERS = 10;
+    private static final double DELTA = 0.001;
+    private static final int NUM_LOCKS = 1024;
+
+    public static KNNGraph build(float[][] data, int k, long seed) {
+        return build(data, k, RobustEuclideanDistance.SINGLETON, seed,
+                Math.max(1, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static KNNGraph build(float[][] data, int k, long seed, int numThreads) {
+        return build(data, k, RobustEuclideanDistance.SINGLETON, seed, numThreads);
+    }
+
+    /**
+     * @param metric must be a distance, i.e. smaller values are closer
+     */
+    public static KNNGraph build(float[][] data, int k, SimilarityMetric metric, long seed, int numThreads) {
+        int n = data.length;
+        k = Math.max(1, Math.min(k, n - 1));
+        int[] neighbors = new int[n * k];
+        float[] distances = new float[n * k];
+        boolean[] isNew = new boolean[n * k];
+        Arrays.fill(neighbors, -1);
+        Arrays.fill(distances, Float.MAX_VALUE);
+        Object[] locks = new Object[NUM_LOCKS];
+        for (int l = 0; l < NUM_LOCKS; l++) {
+            locks[l] = new Object();
+        }
+        final int kF = k;
+
+        RandomProjectionForest forest = new RandomProjectionForest(data, NUM_TREES, Math.max(2 * k, 16), seed,
+                numThreads);
+        AtomicInteger currRow = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(numThreads, () -> {
+            int i = currRow.getAndIncrement();
+            while (i < n) {
+                for (int c : forest.getCandidates(i)) {
+                    tryInsert(i, c, metric.distance(data[i], data[c]), kF, neighbors, distances, isNew, locks);
+                }
+                i = currRow.getAndIncrement();
+            }
+        });
+
+        Random generator = new Random(seed);
+        for (int iter = 0; iter < MAX_ITERS; iter++) {
+            int[][] newCandidates = new int[n][];
+            int[][] oldCandidates = new int[n][];
+            sampleCandidates(n, kF, neighbors, isNew, newCandidates, oldCandidates, generator);
+
+            AtomicLong numUpdates = new AtomicLong(0);
+            AtomicInteger currNode = new AtomicInteger(0);
+            ParallelizedMixerTools.launchParallelizedCode(numThreads, () -> {
+                long updates = 0;
+                int v = currNode.getAndIncrement();
+                while (v < n) {
+                    int[] newList = newCandidates[v];
+                    int[] oldList = oldCandidates[v];
+                    for (int a = 0; a < newList.length; a++) {
+                        int p = newList[a];
+                        for (int b = a + 1; b < newList.length; b++) {
+                            updates += join(p, newList[b], data, metric, kF, neighbors, distances, isNew, locks);
+                        }
+                        for (int q : oldList) {
+                            updates += join(p, q, data, metric, kF, neighbors, distances, isNew, locks);
+                        }
+                    }
+                    v = currNode.getAndIncrement();
+                }
+                numUpdates.addAndGet(updates);
+            });
+
+            if (MixerGlobals.printVerboseComments) {
+                System.out.println("NN-descent iteration " + iter + " updates " + numUpdates.get());
+            }
+            if (numUpdates.get() < DELTA * n * kF) {
+                break;
+            }
+        }
+
+        return new KNNGraph(n, kF, neighbors, distances);
+    }
+
+    /**
+     * forward and reverse neighbors of each node, split by whether they were added since the last round;
+     * reverse lists are capped at k by reservoir sampling
+     */
+    private static void sampleCandidates(int n, int k, int[] neighbors, boolean[] isNew,
+                                         int[][] newCandidates, int[][] oldCandidates, Random generator) {
+        int[][] newBuffer = new int[n][2 * k];
+        int[][] oldBuffer = new int[n][2 * k];
+        int[] numNew = new int[n];
+        int[] numOld = new int[n];
+        int[] numNewReverse = new int[n];
+        int[] numOldReverse = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            for (int r = 0; r < k; r++) {
+                int j = neighbors[i * k + r];
+                if (j < 0) continue;
+                if (isNew[i * k + r]) {
+                    newBuffer[i][numNew[i]++] = j;
+                    isNew[i * k + r] = false;
+                } else {
+                    oldBuffer[i][numOld[i]++] = j;
+                }
+            }
+        }
+
+        int[] forwardNew = Arrays.copyOf(numNew, n);
+        int[] forwardOld = Arrays.copyOf(numOld, n);
+        for (int i = 0; i < n; i++) {
+            for (int a = 0; a < forwardNew[i]; a++) {
+                int j = newBuffer[i][a];
+                addReverse(newBuffer[j], numNew, numNewReverse, j, i, k, generator);
+            }
+            for (int a = 0; a < forwardOld[i]; a++) {
+                int j = oldBuffer[i][a];
+                addReverse(oldBuffer[j], numOld, numOldReverse, j, i, k, generator);
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            newCandidates[i] = Arrays.copyOf(newBuffer[i], numNew[i]);
+            oldCandidates[i] = Arrays.copyOf(oldBuffer[i], numOld[i]);
+        }
+    }
+
+    private static void addReverse(int[] buffer, int[] counts, int[] numSeen, int node, int value, int k,
+                                   Random generator) {
+        int forwardCount = counts[node] - Math.min(numSeen[node], k);
+        numSeen[node]++;
+        if (numSeen[node] <= k) {
+            buffer[counts[node]++] = value;
+        } else {
+            int slot = generator.nextInt(numSeen[node]);
+            if (slot < k) {
+                buffer[forwardCount + slot] = value;
+            }
+        }
+    }
+
+    private static int join(int p, int q, float[][] data, SimilarityMetric metric, int k, int[] neighbors,
+                            float[] distances, boolean[] isNew, Object[] locks) {
+        if (p == q) return 0;
+        float d = metric.distance(data[p], data[q]);
+        return tryInsert(p, q, d, k, neighbors, distances, isNew, locks)
+                + tryInsert(q, p, d, k, neighbors, distances, isNew, locks);
+    }
+
+    private static int tryInsert(int row, int candidate, float d, int k, int[] neighbors, float[] distances,
+                                 boolean[] isNew, Object[] locks) {
+        int start = row * k;
+        if (row == candidate || d >= distances[start + k - 1]) return 0;
+        synchronized (locks[row % NUM_LOCKS]) {
+            if (d >= distances[start + k - 1]) return 0;
+            for (int r = 0; r < k; r++) {
+                if (neighbors[start + r] == candidate) return 0;
+            }
+            int pos = start + k - 1;
+            while (pos > start && distances[pos - 1] > d) {
+                neighbors[pos] = neighbors[pos - 1];
+                distances[pos] = distances[pos - 1];
+                isNew[pos] = isNew[pos - 1];
+                pos--;
+            }
+            neighbors[pos] = candidate;
+            distances[pos] = d;
+            isNew[pos] = true;
+            return 1;
+        }
+    }
+}
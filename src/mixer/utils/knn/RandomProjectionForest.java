@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.knn;
+
+import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.common.FloatMatrixTools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Random projection forest over the rows of a matrix that may contain NaNs.
+ * Each tree recursively splits rows by the hyperplane halfway between two random rows;
+ * NaN coordinates are replaced by the column mean only for deciding the split.
+ * Rows sharing a leaf in any tree are candidate neighbors.
+ */
+public class RandomProjectionForest {
+
+    private final int numRows;
+    private final int[][] leaves;
+    private final int[][] leafForRow;
+
+    public RandomProjectionForest(float[][] data, int numTrees, int leafSize, long seed, int numThreads) {
+        numRows = data.length;
+        float[] fill = FloatMatrixTools.getColNanMeans(data);
+        for (int j = 0; j < fill.length; j++) {
+            // a column never observed cannot separate rows
+            if (Float.isNaN(fill[j])) fill[j] = 0;
+        }
+
+        List<List<int[]>> leavesForTree = new ArrayList<>();
+        for (int t = 0; t < numTrees; t++) {
+            leavesForTree.add(new ArrayList<>());
+        }
+
+        AtomicInteger currTree = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(numThreads, () -> {
+            int t = currTree.getAndIncrement();
+            while (t < numTrees) {
+                Random generator = new Random(seed + t);
+                int[] indices = new int[numRows];
+                for (int i = 0; i < numRows; i++) {
+                    indices[i] = i;
+                }
+                split(data, fill, indices, 0, numRows, leafSize, generator, leavesForTree.get(t));
+                t = currTree.getAndIncrement();
+            }
+        });
+
+        List<int[]> allLeaves = new ArrayList<>();
+        leafForRow = new int[numTrees][numRows];
+        for (int t = 0; t < numTrees; t++) {
+            for (int[] leaf : leavesForTree.get(t)) {
+                for (int row : leaf) {
+                    leafForRow[t][row] = allLeaves.size();
+                }
+                allLeaves.add(leaf);
+            }
+        }
+        leaves = allLeaves.toArray(new int[0][]);
+    }
+
+    private static void split(float[][] data, float[] fill, int[] indices, int start, int end, int leafSize,
+                              Random generator, List<int[]> leaves) {
+        int length = end - start;
+        if (length <= leafSize) {
+            leaves.add(Arrays.copyOfRange(indices, start, end));
+            return;
+        }
+
+        int p = indices[start + generator.nextInt(length)];
+        int q = indices[start + generator.nextInt(length)];
+        int numCols = fill.length;
+        float[] normal = new float[numCols];
+        double offset = 0;
+        for (int j = 0; j < numCols; j++) {
+            float vp = getValue(data[p], fill, j);
+            float vq = getValue(data[q], fill, j);
+            normal[j] = vp - vq;
+            offset += normal[j] * (vp + vq) / 2.0;
+        }
+
+        int mid = start;
+        for (int i = start; i < end; i++) {
+            double margin = -offset;
+            float[] row = data[indices[i]];
+            for (int j = 0; j < numCols; j++) {
+                margin += normal[j] * getValue(row, fill, j);
+            }
+            if (margin > 0 || (margin == 0 && generator.nextBoolean())) {
+                swap(indices, i, mid++);
+            }
+        }
+
+        if (mid == start || mid == end) {
+            // duplicate rows or p == q; no useful hyperplane, so just halve the node
+            mid = start + length / 2;
+        }
+
+        split(data, fill, indices, start, mid, leafSize, generator, leaves);
+        split(data, fill, indices, mid, end, leafSize, generator, leaves);
+    }
+
+    private static float getValue(float[] row, float[] fill, int j) {
+        return Float.isNaN(row[j]) ? fill[j] : row[j];
+    }
+
+    private static void swap(int[] indices, int a, int b) {
+        int temp = indices[a];
+        indices[a] = indices[b];
+        indices[b] = temp;
+    }
+
+    /**
+     * @return every other row that shares a leaf with this row in at least one tree
+     */
+    public int[] getCandidates(int row) {
+        int total = 0;
+        for (int[] leafIndices : leafForRow) {
+            total += leaves[leafIndices[row]].length;
+        }
+        int[] candidates = new int[total];
+        int counter = 0;
+        for (int[] leafIndices : leafForRow) {
+            int[] leaf = leaves[leafIndices[row]];
+            System.arraycopy(leaf, 0, candidates, counter, leaf.length);
+            counter += leaf.length;
+        }
+        Arrays.sort(candidates);
+
+        int numUnique = 0;
+        for (int k = 0; k < candidates.length; k++) {
+            if (candidates[k] != row && (numUnique == 0 || candidates[k] != candidates[numUnique - 1])) {
+                candidates[numUnique++] = candidates[k];
+            }
+        }
+        return Arrays.copyOf(candidates, numUnique);
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+}
@@ -25,66 +25,153 @@
 package mixer.utils.matrix;
 
 import javastraw.tools.UNIXTools;
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.common.FloatMatrixTools;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * row-major running sums with Neumaier compensation, so that adding many rounds
+ * (and merging many partial aggregates) doesn't lose precision
+ */
 public class AggregateMatrix {
 
-    private double[][] aggregate = null;
+    private final int numRows, numCols;
+    private final double[] sums;
+    private final double[] compensation;
+
+    public AggregateMatrix(int numRows, int numCols) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        sums = new double[numRows * numCols];
+        compensation = new double[numRows * numCols];
+    }
 
-    private static void addBToA(double[][] a, double[][] b) {
-        if (a.length == b.length && a[0].length == b[0].length) {
-            for (int i = 0; i < a.length; i++) {
-                for (int j = 0; j < a[i].length; j++) {
-                    a[i][j] += b[i][j];
+    /**
+     * combines the partial aggregates pairwise in parallel (into the first partial), and scales
+     * the entries by scalar as part of the final merge; partials are combined in iteration order
+     */
+    public static AggregateMatrix reduce(Collection<AggregateMatrix> partials, double scalar) {
+        if (partials.isEmpty()) {
+            throw new IllegalArgumentException("No aggregate matrices to reduce");
+        }
+        List<AggregateMatrix> level = new ArrayList<>(partials);
+        while (level.size() > 2) {
+            final List<AggregateMatrix> current = level;
+            int numPairs = current.size() / 2;
+            AtomicInteger currPairIndex = new AtomicInteger(0);
+            ParallelizedMixerTools.launchParallelizedCode(() -> {
+                int p = currPairIndex.getAndIncrement();
+                while (p < numPairs) {
+                    current.get(2 * p).addRows(current.get(2 * p + 1), 0, current.get(2 * p).numRows, 1);
+                    p = currPairIndex.getAndIncrement();
                 }
+            });
+
+            level = new ArrayList<>();
+            for (int k = 0; k < current.size(); k += 2) {
+                level.add(current.get(k));
             }
-        } else {
-            System.err.println("dimensions incorrect " + a.length + "==" + b.length
-                    + "; " + a[0].length + "==" + b[0].length);
         }
-    }
 
-    private static void divideBy(double[][] matrix, float scalar) {
-        for (int i = 0; i < matrix.length; i++) {
-            for (int j = 0; j < matrix[i].length; j++) {
-                matrix[i][j] /= scalar;
+        final AggregateMatrix result = level.get(0);
+        final AggregateMatrix other = level.size() > 1 ? level.get(1) : null;
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int i = currRowIndex.getAndIncrement();
+            while (i < result.numRows) {
+                if (other != null) {
+                    result.addRows(other, i, i + 1, scalar);
+                } else {
+                    result.scaleRows(i, i + 1, scalar);
+                }
+                i = currRowIndex.getAndIncrement();
             }
-        }
+        });
+        return result;
     }
 
-    private static void saveToPNG(double[][] matrix, File outfolder, String name) {
+    private static void saveToPNG(float[][] matrix, File outfolder, String name) {
         File mapLogFile = new File(outfolder, name + ".png");
-        FloatMatrixTools.saveMatrixToPNG(mapLogFile, FloatMatrixTools.convert(matrix), false);
+        FloatMatrixTools.saveMatrixToPNG(mapLogFile, matrix, false);
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumCols() {
+        return numCols;
     }
 
-    public void add(double[][] matrix) {
-        if (aggregate == null) {
-            aggregate = new double[matrix.length][matrix[0].length];
+    public void clear() {
+        Arrays.fill(sums, 0);
+        Arrays.fill(compensation, 0);
+    }
+
+    public void add(int i, int j, double value) {
+        addToIndex(i * numCols + j, value);
+    }
+
+    private void addToIndex(int index, double value) {
+        double sum = sums[index];
+        double total = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation[index] += (sum - total) + value;
+        } else {
+            compensation[index] += (value - total) + sum;
         }
-        addBToA(aggregate, matrix);
+        sums[index] = total;
     }
 
-    public void scaleForNumberOfRounds(int numRounds) {
-        divideBy(aggregate, numRounds);
+    /**
+     * this = (this + other) * scalar, over rows [fromRow, toRow)
+     */
+    private void addRows(AggregateMatrix other, int fromRow, int toRow, double scalar) {
+        if (numRows != other.numRows || numCols != other.numCols) {
+            System.err.println("dimensions incorrect " + numRows + "==" + other.numRows
+                    + "; " + numCols + "==" + other.numCols);
+            return;
+        }
+        for (int index = fromRow * numCols; index < toRow * numCols; index++) {
+            addToIndex(index, other.sums[index]);
+            compensation[index] += other.compensation[index];
+        }
+        if (scalar != 1) {
+            scaleRows(fromRow, toRow, scalar);
+        }
     }
 
-    public void add(AggregateMatrix matrix) {
-        add(matrix.aggregate);
+    private void scaleRows(int fromRow, int toRow, double scalar) {
+        for (int index = fromRow * numCols; index < toRow * numCols; index++) {
+            sums[index] = (sums[index] + compensation[index]) * scalar;
+            compensation[index] = 0;
+        }
     }
 
     public void saveToPNG(File outfolder, String name) {
         File outfolder2 = new File(outfolder, name);
         UNIXTools.makeDir(outfolder2);
-        saveToPNG(aggregate, outfolder2, name);
+        saveToPNG(getFloatMatrix(), outfolder2, name);
     }
 
-    public boolean hasData() {
-        return aggregate != null;
+    public float[][] getFloatMatrix() {
+        return getFloatMatrix(1);
     }
 
-    public float[][] getFloatMatrix() {
-        return FloatMatrixTools.deepClone(FloatMatrixTools.convert(aggregate));
+    public float[][] getFloatMatrix(double scalar) {
+        float[][] matrix = new float[numRows][numCols];
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numCols; j++) {
+                int index = i * numCols + j;
+                matrix[i][j] = (float) ((sums[index] + compensation[index]) * scalar);
+            }
+        }
+        return matrix;
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.matrix;
+
+import java.util.*;
+
+/**
+ * Primitive counterpart of ShuffledIndices that can be reshuffled in place every round.
+ * Members of each cluster (in sorted cluster order) sit in one contiguous segment;
+ * only the first multiple of compressionFactor entries of a segment are kept.
+ * Every shuffle starts again from the canonical order, so a round's permutation depends only on its seed.
+ */
+public class ClusterPermutation {
+    private final int[] canonical;
+    private final int[] indices;
+    private final int[] segmentStarts;
+    private final int[] numKeptPerSegment;
+    private final int numKept;
+
+    public ClusterPermutation(Map<Integer, List<Integer>> clusterToIndices, int compressionFactor) {
+        List<Integer> order = new ArrayList<>(clusterToIndices.keySet());
+        Collections.sort(order);
+
+        int total = 0;
+        for (Integer clusterID : order) {
+            total += clusterToIndices.get(clusterID).size();
+        }
+
+        indices = new int[total];
+        segmentStarts = new int[order.size() + 1];
+        numKeptPerSegment = new int[order.size()];
+        int counter = 0;
+        int kept = 0;
+        for (int s = 0; s < order.size(); s++) {
+            segmentStarts[s] = counter;
+            List<Integer> members = clusterToIndices.get(order.get(s));
+            for (Integer index : members) {
+                indices[counter++] = index;
+            }
+            numKeptPerSegment[s] = (members.size() / compressionFactor) * compressionFactor;
+            kept += numKeptPerSegment[s];
+        }
+        segmentStarts[order.size()] = counter;
+        numKept = kept;
+        canonical = indices.clone();
+    }
+
+    public ClusterPermutation(ClusterPermutation template) {
+        canonical = template.canonical;
+        indices = template.canonical.clone();
+        segmentStarts = template.segmentStarts;
+        numKeptPerSegment = template.numKeptPerSegment;
+        numKept = template.numKept;
+    }
+
+    /**
+     * resets to the canonical order, then does an in-place Fisher-Yates within each cluster's segment
+     */
+    public void shuffle(SplittableRandom generator) {
+        System.arraycopy(canonical, 0, indices, 0, indices.length);
+        for (int s = 0; s < numKeptPerSegment.length; s++) {
+            int start = segmentStarts[s];
+            for (int i = segmentStarts[s + 1] - 1; i > start; i--) {
+                int j = start + generator.nextInt(i - start + 1);
+                int temp = indices[i];
+                indices[i] = indices[j];
+                indices[j] = temp;
+            }
+        }
+    }
+
+    /**
+     * @param destination length getNumKept(); receives the kept indices of every cluster in order
+     */
+    public void fillKept(int[] destination) {
+        int counter = 0;
+        for (int s = 0; s < numKeptPerSegment.length; s++) {
+            System.arraycopy(indices, segmentStarts[s], destination, counter, numKeptPerSegment[s]);
+            counter += numKeptPerSegment[s];
+        }
+    }
+
+    public int getNumKept() {
+        return numKept;
+    }
+}
@@ -26,9 +26,12 @@ package mixer.utils.matrix;
 
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.common.FloatMatrixTools;
 import mixer.utils.common.LogTools;
 import mixer.utils.common.ZScoreTools;
@@ -37,6 +40,9 @@ import mixer.utils.slice.cleaning.IntraMatrixCleaner;
 import mixer.utils.slice.cleaning.SimilarityMatrixTools;
 import mixer.utils.slice.matrices.Dimension;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 abstract public class HiCMatrix {
     public static boolean USE_ZSCORE = false;
     public static int NUM_CENTROIDS = 1;
@@ -84,21 +90,7 @@ abstract public class HiCMatrix {
                                                  int compressionFactor) {
 
         float[][] interMatrix = new float[rowsDimension.length][colsDimension.length];
-        for (int i = 0; i < rowsChromosomes.length; i++) {
-            Chromosome chr1 = rowsChromosomes[i];
-            for (int j = 0; j < colsChromosomes.length; j++) {
-                Chromosome chr2 = colsChromosomes[j];
-                final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr1, chr2, resolution);
-                if (zd == null) continue;
-
-                // will need to flip across diagonal
-                boolean needToFlip = chr2.getIndex() < chr1.getIndex();
-                fillInChromosomeRegion(ds, interMatrix, zd, chr1, rowsDimension.offset[i],
-                        chr2, colsDimension.offset[j], needToFlip);
-            }
-            System.out.print(".");
-        }
-        System.out.println(".");
+        fillInAllChromosomeRegions(ds, interMatrix);
 
         FloatMatrixTools.cleanUpMatrix(interMatrix, shouldZeroOutNans);
 
@@ -119,10 +111,70 @@ abstract public class HiCMatrix {
         return interMatrix;
     }
 
+    /**
+     * every chromosome pair writes to its own sub-block, so pairs can be filled concurrently
+     */
+    private void fillInAllChromosomeRegions(Dataset ds, float[][] interMatrix) {
+        int numPairs = rowsChromosomes.length * colsChromosomes.length;
+        AtomicInteger currPairIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int p = currPairIndex.getAndIncrement();
+            while (p < numPairs) {
+                int i = p / colsChromosomes.length;
+                int j = p % colsChromosomes.length;
+                Chromosome chr1 = rowsChromosomes[i];
+                Chromosome chr2 = colsChromosomes[j];
+                final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr1, chr2, resolution);
+                if (zd != null) {
+                    // will need to flip across diagonal
+                    boolean needToFlip = chr2.getIndex() < chr1.getIndex();
+                    fillInChromosomeRegion(ds, interMatrix, zd, chr1, rowsDimension.offset[i],
+                            chr2, colsDimension.offset[j], needToFlip);
+                }
+                System.out.print(".");
+                p = currPairIndex.getAndIncrement();
+            }
+        });
+        System.out.println(".");
+    }
+
     abstract protected void fillInChromosomeRegion(Dataset ds, float[][] matrix, MatrixZoomData zd,
                                                    Chromosome chr1, int offsetIndex1,
                                                    Chromosome chr2, int offsetIndex2, boolean needToFlip);
 
+    /**
+     * adds the normalized records of a chromosome pair directly into its sub-block of the matrix,
+     * swapping x and y when the pair is stored in the opposite orientation
+     */
+    protected void scatterRecordsIntoRegion(float[][] matrix, MatrixZoomData zd,
+                                            int lengthChr1, int offsetIndex1,
+                                            int lengthChr2, int offsetIndex2, boolean needToFlip) {
+        int numStoredRows = needToFlip ? lengthChr2 : lengthChr1;
+        int numStoredCols = needToFlip ? lengthChr1 : lengthChr2;
+        try {
+            List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd, 0, numStoredRows,
+                    0, numStoredCols, norm, false);
+            for (Block b : blocks) {
+                if (b != null) {
+                    for (ContactRecord cr : b.getContactRecords()) {
+                        int x = cr.getBinX();
+                        int y = cr.getBinY();
+                        if (x < numStoredRows && y < numStoredCols) {
+                            if (needToFlip) {
+                                matrix[offsetIndex1 + y][offsetIndex2 + x] += cr.getCounts();
+                            } else {
+                                matrix[offsetIndex1 + x][offsetIndex2 + y] += cr.getCounts();
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(99);
+        }
+    }
+
     public Chromosome[] getRowChromosomes() {
         return rowsChromosomes;
     }
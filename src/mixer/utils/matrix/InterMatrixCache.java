@@ -0,0 +1,79 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.matrix;
+
+import javastraw.reader.Dataset;
+import javastraw.reader.type.NormalizationType;
+import mixer.utils.similaritymeasures.SimilarityMetric;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Builds each inter-chromosomal map for one (dataset, norm, resolution, metric) at most once
+ * and shares it between consumers, who must treat it as read-only.
+ * Every map type is expected to be requested a fixed number of times;
+ * after the last release the map is dropped so it can be garbage collected.
+ */
+public class InterMatrixCache {
+    private final Dataset ds;
+    private final NormalizationType norm;
+    private final int resolution;
+    private final SimilarityMetric metric;
+    private final Map<InterOnlyMatrix.InterMapType, InterOnlyMatrix> matrices =
+            new EnumMap<>(InterOnlyMatrix.InterMapType.class);
+    private final Map<InterOnlyMatrix.InterMapType, Integer> remainingUses =
+            new EnumMap<>(InterOnlyMatrix.InterMapType.class);
+
+    public InterMatrixCache(Dataset ds, NormalizationType norm, int resolution, SimilarityMetric metric,
+                            int usesPerMapType) {
+        this.ds = ds;
+        this.norm = norm;
+        this.resolution = resolution;
+        this.metric = metric;
+        for (InterOnlyMatrix.InterMapType mapType : InterOnlyMatrix.InterMapType.values()) {
+            remainingUses.put(mapType, usesPerMapType);
+        }
+    }
+
+    public synchronized InterOnlyMatrix get(InterOnlyMatrix.InterMapType mapType) {
+        InterOnlyMatrix matrix = matrices.get(mapType);
+        if (matrix == null) {
+            matrix = InterOnlyMatrix.getMatrix(ds, norm, resolution, mapType, metric);
+            if (remainingUses.get(mapType) > 1) {
+                matrices.put(mapType, matrix);
+            }
+        }
+        return matrix;
+    }
+
+    public synchronized void release(InterOnlyMatrix.InterMapType mapType) {
+        int uses = remainingUses.get(mapType) - 1;
+        remainingUses.put(mapType, uses);
+        if (uses < 1) {
+            matrices.remove(mapType);
+        }
+    }
+}
@@ -29,8 +29,6 @@ import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.NormalizationType;
-import javastraw.tools.HiCFileTools;
-import mixer.utils.common.FloatMatrixTools;
 import mixer.utils.similaritymeasures.SimilarityMetric;
 
 public class InterOnlyMatrix extends HiCMatrix {
@@ -71,25 +69,7 @@ public class InterOnlyMatrix extends HiCMatrix {
         int lengthChr1 = (int) Math.ceil((float) chr1.getLength() / resolution);
         int lengthChr2 = (int) Math.ceil((float) chr2.getLength() / resolution);
 
-        float[][] allDataForRegion = null;
-        try {
-            if (needToFlip) {
-                float[][] allDataForRegionMatrix = HiCFileTools.extractLocalBoundedRegionFloatMatrix(zd, 0, lengthChr2,
-                        0, lengthChr1, lengthChr2, lengthChr1, norm, false);
-                allDataForRegion = FloatMatrixTools.transpose(allDataForRegionMatrix);
-            } else {
-                allDataForRegion = HiCFileTools.extractLocalBoundedRegionFloatMatrix(zd, 0, lengthChr1,
-                        0, lengthChr2, lengthChr1, lengthChr2, norm, false);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(99);
-        }
-
-        for (int i = 0; i < allDataForRegion.length; i++) {
-            System.arraycopy(allDataForRegion[i], 0,
-                    matrix[offsetIndex1 + i], offsetIndex2, allDataForRegion[i].length);
-        }
+        scatterRecordsIntoRegion(matrix, zd, lengthChr1, offsetIndex1, lengthChr2, offsetIndex2, needToFlip);
     }
 
 
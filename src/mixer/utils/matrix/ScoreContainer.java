@@ -25,6 +25,7 @@
 package mixer.utils.matrix;
 
 import mixer.utils.shuffle.scoring.KLDivergenceScoring;
+import mixer.utils.shuffle.scoring.RegionStatistics;
 import mixer.utils.shuffle.scoring.VarianceScoring;
 
 import java.io.File;
@@ -39,18 +40,25 @@ public class ScoreContainer {
     private final float[][] baselines;
     private final float[][] shuffled;
     private final float[][] ratios;
+    private final int[] numRounds;
 
     public ScoreContainer(int numMaps, int numScores) {
         baselines = new float[numMaps][numScores];
         shuffled = new float[numMaps][numScores];
         ratios = new float[numMaps][numScores];
+        numRounds = new int[numMaps];
     }
 
     public static float[] updateAggMatrixScores(float[][] matrix, ShuffledIndices rowBounds, ShuffledIndices colBounds,
                                                 boolean isBaseline, boolean useSymmetry) {
+        return updateAggMatrixScores(new RegionStatistics(matrix), rowBounds, colBounds, isBaseline, useSymmetry);
+    }
+
+    public static float[] updateAggMatrixScores(RegionStatistics statistics, ShuffledIndices rowBounds,
+                                                ShuffledIndices colBounds, boolean isBaseline, boolean useSymmetry) {
         float[] scores = new float[2];
-        scores[0] = (new VarianceScoring(matrix, rowBounds, colBounds, useSymmetry)).score(isBaseline);
-        scores[1] = (new KLDivergenceScoring(matrix, rowBounds, colBounds, true, useSymmetry)).score(isBaseline);
+        scores[0] = (new VarianceScoring(statistics, rowBounds, colBounds, useSymmetry)).score(isBaseline);
+        scores[1] = (new KLDivergenceScoring(statistics, rowBounds, colBounds, true, useSymmetry)).score(isBaseline);
         return scores;
     }
 
@@ -65,13 +73,17 @@ public class ScoreContainer {
 
     public void updateAggregateScores(AggregateMatrix aggregate, ShuffledIndices[] globalAllIndices, int mapIndex,
                                       boolean useSymmetry) {
-        float[][] aggMatrix = aggregate.getFloatMatrix();
-        baselines[mapIndex] = updateAggMatrixScores(aggMatrix, globalAllIndices[0],
+        RegionStatistics statistics = new RegionStatistics(aggregate.getFloatMatrix());
+        baselines[mapIndex] = updateAggMatrixScores(statistics, globalAllIndices[0],
                 globalAllIndices[1], true, useSymmetry);
-        shuffled[mapIndex] = updateAggMatrixScores(aggMatrix, globalAllIndices[0],
+        shuffled[mapIndex] = updateAggMatrixScores(statistics, globalAllIndices[0],
                 globalAllIndices[1], false, useSymmetry);
     }
 
+    public void setNumRounds(int mapIndex, int rounds) {
+        numRounds[mapIndex] = rounds;
+    }
+
     public void savePlotsAndResults(File outfolder, String prefix, String[] names) {
         try {
             writeToFile(outfolder, "aggregate_scores_" + prefix + ".txt", shuffled, baselines, ratios, names);
@@ -88,6 +100,7 @@ public class ScoreContainer {
 
         for (int y = 0; y < ratio.length; y++) {
             myWriter.write(names[y] + "------------------\n");
+            myWriter.write("Shuffle rounds used: " + numRounds[y] + "\n\n");
             for (int z = 0; z < ratio[y].length; z++) {
                 myWriter.write("CHIC Score (" + scoreTypes[z] + ")\n");
                 myWriter.write("Shuffled  : " + shuffle[y][z] + "\n");
@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.network;
+
+/**
+ * Undirected graph in compressed sparse row form: the neighbors of node i are
+ * targets[offsets[i]] ... targets[offsets[i + 1] - 1], with optional edge weights in the same positions
+ */
+public class CSRGraph {
+    private final int numNodes;
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+
+    /**
+     * each of the first numEdges (sources[e], destinations[e]) pairs is stored in both directions
+     */
+    public CSRGraph(int numNodes, int[] sources, int[] destinations, int numEdges) {
+        this(numNodes, sources, destinations, null, numEdges);
+    }
+
+    /**
+     * as above, with edgeWeights[e] stored for both directions of edge e (or no weights if null)
+     */
+    public CSRGraph(int numNodes, int[] sources, int[] destinations, double[] edgeWeights, int numEdges) {
+        this.numNodes = numNodes;
+        offsets = new int[numNodes + 1];
+        for (int e = 0; e < numEdges; e++) {
+            offsets[sources[e] + 1]++;
+            offsets[destinations[e] + 1]++;
+        }
+        for (int i = 0; i < numNodes; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        targets = new int[offsets[numNodes]];
+        weights = edgeWeights == null ? null : new double[offsets[numNodes]];
+        int[] position = new int[numNodes];
+        System.arraycopy(offsets, 0, position, 0, numNodes);
+        for (int e = 0; e < numEdges; e++) {
+            int forward = position[sources[e]]++;
+            int backward = position[destinations[e]]++;
+            targets[forward] = destinations[e];
+            targets[backward] = sources[e];
+            if (weights != null) {
+                weights[forward] = edgeWeights[e];
+                weights[backward] = edgeWeights[e];
+            }
+        }
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return weights aligned with getTargets(), or null for an unweighted graph
+     */
+    public double[] getWeights() {
+        return weights;
+    }
+
+    public int getDegree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    /**
+     * sum of the weights of a node's edges (a self-loop counts twice); the degree if unweighted
+     */
+    public double getWeightedDegree(int node) {
+        if (weights == null) return getDegree(node);
+        double total = 0;
+        for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+            total += weights[e];
+        }
+        return total;
+    }
+}
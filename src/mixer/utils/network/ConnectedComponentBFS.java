@@ -1,7 +1,7 @@
 /*
  * The MIT License (MIT)
  *
- * Copyright (c) 2011-2021 Rice University, Baylor College of Medicine, Aiden Lab
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -26,6 +26,11 @@ package mixer.utils.network;
 
 import java.util.*;
 
+/**
+ * Connected components of a CSR graph by union-find (union by size, path halving), linear in the edges.
+ * Components are numbered in order of their lowest node, and those with more than BIG_SIZE nodes
+ * are kept as large networks.
+ */
 public class ConnectedComponentBFS {
     private final List<Set<Integer>> largeNetworks = new ArrayList<>();
     private final int BIG_SIZE = 25;
@@ -33,56 +38,74 @@ public class ConnectedComponentBFS {
     private final int[] nodeStatus;
     private final List<Integer> clusterSizes = new ArrayList<>();
 
-    public ConnectedComponentBFS(Map<Integer, Set<Integer>> adjacencyMatrix, int numNodes) {
-        nodeStatus = new int[numNodes];
-        Arrays.fill(nodeStatus, -1);
+    public ConnectedComponentBFS(CSRGraph graph) {
+        int numNodes = graph.getNumNodes();
+        int[] parent = new int[numNodes];
+        int[] setSize = new int[numNodes];
+        for (int k = 0; k < numNodes; k++) {
+            parent[k] = k;
+            setSize[k] = 1;
+        }
 
+        int[] offsets = graph.getOffsets();
+        int[] targets = graph.getTargets();
+        for (int k = 0; k < numNodes; k++) {
+            for (int e = offsets[k]; e < offsets[k + 1]; e++) {
+                union(parent, setSize, k, targets[e]);
+            }
+        }
 
+        nodeStatus = new int[numNodes];
+        int[] rootToCluster = new int[numNodes];
+        Arrays.fill(rootToCluster, -1);
         int clusterCounter = 0;
-        for (int k = 0; k < nodeStatus.length; k++) {
-            if (nodeIsNotAssigned(k)) {
-                int size = BFS(adjacencyMatrix, k, clusterCounter);
-                clusterSizes.add(size);
-                clusterCounter++;
+        for (int k = 0; k < numNodes; k++) {
+            int root = find(parent, k);
+            if (rootToCluster[root] < 0) {
+                rootToCluster[root] = clusterCounter++;
+                clusterSizes.add(setSize[root]);
             }
+            nodeStatus[k] = rootToCluster[root];
         }
-    }
 
-    private boolean nodeIsNotAssigned(int k) {
-        return nodeStatus[k] < 0;
+        Map<Integer, Set<Integer>> bigClusters = new LinkedHashMap<>();
+        for (int c = 0; c < clusterSizes.size(); c++) {
+            if (clusterSizes.get(c) > BIG_SIZE) {
+                bigClusters.put(c, new LinkedHashSet<>());
+            }
+        }
+        for (int k = 0; k < numNodes; k++) {
+            Set<Integer> network = bigClusters.get(nodeStatus[k]);
+            if (network != null) {
+                network.add(k);
+            }
+        }
+        largeNetworks.addAll(bigClusters.values());
     }
 
-    private int BFS(Map<Integer, Set<Integer>> adjacencyMatrix, int startingVertex, int clusterID) {
-        Set<Integer> nodesThisRound = new HashSet<>();
-        Queue<Integer> queue = new LinkedList<>();
-        queue.add(startingVertex);
-        nodesThisRound.add(startingVertex);
-        nodeStatus[startingVertex] = clusterID;
-        int size = 1;
-
-        while (!queue.isEmpty()) {
-            Integer current = queue.remove();
-            for (int i = 0; i < nodeStatus.length; i++)
-                if (isConnected(adjacencyMatrix, current, i) && nodeIsNotAssigned(i)) {
-                    nodeStatus[i] = clusterID;
-                    queue.add(i);
-                    nodesThisRound.add(i);
-                    size++;
-                }
+    private static int find(int[] parent, int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]];
+            node = parent[node];
         }
+        return node;
+    }
 
-        if (size > BIG_SIZE) {
-            largeNetworks.add(nodesThisRound);
+    private static void union(int[] parent, int[] setSize, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA == rootB) return;
+        if (setSize[rootA] < setSize[rootB]) {
+            int temp = rootA;
+            rootA = rootB;
+            rootB = temp;
         }
-
-        return size;
+        parent[rootB] = rootA;
+        setSize[rootA] += setSize[rootB];
     }
 
-    private boolean isConnected(Map<Integer, Set<Integer>> adjacencyMatrix, Integer node1, Integer node2) {
-        if (adjacencyMatrix.containsKey(node1)) {
-            return adjacencyMatrix.get(node1).contains(node2);
-        }
-        return false;
+    public int getClusterID(int node) {
+        return nodeStatus[node];
     }
 
     public List<Integer> getClusterSizes() {
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.network;
+
+import java.util.Arrays;
+
+/**
+ * Groups the loop midpoints of one chromosome into anchors with a single sweep over the sorted midpoints.
+ * An anchor is started by its leftmost midpoint and takes every following midpoint within
+ * 2 * (bufferWidth - 1) bins of it, i.e. the span that a +/- bufferWidth match around the anchor allows.
+ * Loop ids are stored anchor by anchor in one array, with anchor boundaries in a second.
+ */
+public class LoopAnchorClusters {
+    private final int[] loopIDs;
+    private final int[] anchorStarts;
+    private final long[] anchorCenters;
+    private final int numAnchors;
+
+    public LoopAnchorClusters(long[] midBins, int bufferWidth) {
+        int n = midBins.length;
+        // pack (midBin, loop id) so one primitive sort orders by position and breaks ties by id
+        long[] sorted = new long[n];
+        for (int id = 0; id < n; id++) {
+            sorted[id] = (midBins[id] << 32) | id;
+        }
+        Arrays.sort(sorted);
+
+        loopIDs = new int[n];
+        int[] starts = new int[n + 1];
+        int counter = 0;
+        long maxSpan = 2L * (bufferWidth - 1);
+        long anchorStartBin = Long.MIN_VALUE;
+        for (int k = 0; k < n; k++) {
+            long midBin = sorted[k] >> 32;
+            loopIDs[k] = (int) sorted[k];
+            if (k == 0 || midBin - anchorStartBin > maxSpan) {
+                starts[counter++] = k;
+                anchorStartBin = midBin;
+            }
+        }
+        starts[counter] = n;
+        numAnchors = counter;
+        anchorStarts = Arrays.copyOf(starts, counter + 1);
+
+        anchorCenters = new long[numAnchors];
+        for (int a = 0; a < numAnchors; a++) {
+            long first = sorted[anchorStarts[a]] >> 32;
+            long last = sorted[anchorStarts[a + 1] - 1] >> 32;
+            anchorCenters[a] = (first + last) / 2;
+        }
+    }
+
+    public int getNumAnchors() {
+        return numAnchors;
+    }
+
+    public long getAnchorCenter(int anchor) {
+        return anchorCenters[anchor];
+    }
+
+    /**
+     * @return the anchor each id (index into the midpoints given to the constructor) belongs to
+     */
+    public int[] getAnchorForEachID() {
+        int[] anchorForID = new int[loopIDs.length];
+        for (int a = 0; a < numAnchors; a++) {
+            for (int k = anchorStarts[a]; k < anchorStarts[a + 1]; k++) {
+                anchorForID[loopIDs[k]] = a;
+            }
+        }
+        return anchorForID;
+    }
+
+    public int size(int anchor) {
+        return anchorStarts[anchor + 1] - anchorStarts[anchor];
+    }
+
+    /**
+     * @return number of links addLinks will write: each anchor is linked as a chain of its loops
+     */
+    public int getNumLinks() {
+        return loopIDs.length - numAnchors;
+    }
+
+    /**
+     * writes a chain through each anchor's loops, which connects them with size - 1 links
+     *
+     * @return index after the last link written
+     */
+    public int addLinks(int[] sources, int[] destinations, int start) {
+        int e = start;
+        for (int a = 0; a < numAnchors; a++) {
+            for (int k = anchorStarts[a] + 1; k < anchorStarts[a + 1]; k++) {
+                sources[e] = loopIDs[k - 1];
+                destinations[e] = loopIDs[k];
+                e++;
+            }
+        }
+        return e;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.network;
+
+import java.util.Arrays;
+
+/**
+ * Louvain modularity clustering of a weighted CSR graph: nodes are moved greedily to the neighboring
+ * community with the best modularity gain until nothing moves, then each community is collapsed into
+ * a single node and the process repeats until no two communities merge.
+ * Nodes are visited in index order, so the result is deterministic.
+ */
+public class LouvainCommunities {
+
+    private static final double MIN_GAIN = 1e-12;
+    private static final int MAX_PASSES = 100;
+
+    /**
+     * @return community of each node, numbered in order of each community's lowest node
+     */
+    public static int[] getCommunities(CSRGraph graph) {
+        int[] membership = new int[graph.getNumNodes()];
+        for (int i = 0; i < membership.length; i++) {
+            membership[i] = i;
+        }
+
+        CSRGraph level = graph;
+        while (true) {
+            int[] communities = moveNodes(level);
+            int numCommunities = renumber(communities);
+            if (numCommunities == level.getNumNodes()) break;
+
+            for (int i = 0; i < membership.length; i++) {
+                membership[i] = communities[membership[i]];
+            }
+            level = collapse(level, communities, numCommunities);
+        }
+        renumber(membership);
+        return membership;
+    }
+
+    private static int[] moveNodes(CSRGraph graph) {
+        int n = graph.getNumNodes();
+        int[] offsets = graph.getOffsets();
+        int[] targets = graph.getTargets();
+        double[] weights = graph.getWeights();
+
+        double[] degree = new double[n];
+        double totalWeight = 0;
+        for (int i = 0; i < n; i++) {
+            degree[i] = graph.getWeightedDegree(i);
+            totalWeight += degree[i];
+        }
+
+        int[] community = new int[n];
+        double[] communityDegree = new double[n];
+        for (int i = 0; i < n; i++) {
+            community[i] = i;
+            communityDegree[i] = degree[i];
+        }
+        if (totalWeight <= 0) return community;
+
+        double[] weightToCommunity = new double[n];
+        int[] touched = new int[n];
+        boolean[] isTouched = new boolean[n];
+        boolean moved = true;
+        for (int pass = 0; pass < MAX_PASSES && moved; pass++) {
+            moved = false;
+            for (int i = 0; i < n; i++) {
+                int numTouched = 0;
+                int current = community[i];
+                touched[numTouched++] = current;
+                isTouched[current] = true;
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                    int j = targets[e];
+                    if (j == i) continue;
+                    int c = community[j];
+                    if (!isTouched[c]) {
+                        isTouched[c] = true;
+                        touched[numTouched++] = c;
+                    }
+                    weightToCommunity[c] += weights == null ? 1 : weights[e];
+                }
+
+                communityDegree[current] -= degree[i];
+                int best = current;
+                double bestGain = weightToCommunity[current] - communityDegree[current] * degree[i] / totalWeight;
+                for (int t = 0; t < numTouched; t++) {
+                    int c = touched[t];
+                    double gain = weightToCommunity[c] - communityDegree[c] * degree[i] / totalWeight;
+                    if (gain > bestGain + MIN_GAIN) {
+                        best = c;
+                        bestGain = gain;
+                    }
+                }
+                communityDegree[best] += degree[i];
+                if (best != current) {
+                    community[i] = best;
+                    moved = true;
+                }
+
+                for (int t = 0; t < numTouched; t++) {
+                    weightToCommunity[touched[t]] = 0;
+                    isTouched[touched[t]] = false;
+                }
+            }
+        }
+        return community;
+    }
+
+    /**
+     * relabels in place to 0..k-1 in order of first appearance
+     *
+     * @return k
+     */
+    private static int renumber(int[] communities) {
+        int[] newID = new int[communities.length];
+        Arrays.fill(newID, -1);
+        int counter = 0;
+        for (int i = 0; i < communities.length; i++) {
+            if (newID[communities[i]] < 0) {
+                newID[communities[i]] = counter++;
+            }
+            communities[i] = newID[communities[i]];
+        }
+        return counter;
+    }
+
+    /**
+     * one node per community; edges between communities (and within them, as self-loops) are summed
+     */
+    private static CSRGraph collapse(CSRGraph graph, int[] communities, int numCommunities) {
+        int n = graph.getNumNodes();
+        int[] offsets = graph.getOffsets();
+        int[] targets = graph.getTargets();
+        double[] weights = graph.getWeights();
+
+        // members of each community, by counting sort
+        int[] memberStarts = new int[numCommunities + 1];
+        for (int i = 0; i < n; i++) {
+            memberStarts[communities[i] + 1]++;
+        }
+        for (int c = 0; c < numCommunities; c++) {
+            memberStarts[c + 1] += memberStarts[c];
+        }
+        int[] members = new int[n];
+        int[] position = Arrays.copyOf(memberStarts, numCommunities);
+        for (int i = 0; i < n; i++) {
+            members[position[communities[i]]++] = i;
+        }
+
+        int[] sources = new int[targets.length];
+        int[] destinations = new int[targets.length];
+        double[] edgeWeights = new double[targets.length];
+        int numEdges = 0;
+
+        double[] weightToCommunity = new double[numCommunities];
+        int[] touched = new int[numCommunities];
+        boolean[] isTouched = new boolean[numCommunities];
+        for (int c = 0; c < numCommunities; c++) {
+            int numTouched = 0;
+            for (int m = memberStarts[c]; m < memberStarts[c + 1]; m++) {
+                int i = members[m];
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                    int d = communities[targets[e]];
+                    if (d < c) continue; // each pair of communities is written once, from the lower one
+                    if (!isTouched[d]) {
+                        isTouched[d] = true;
+                        touched[numTouched++] = d;
+                    }
+                    weightToCommunity[d] += weights == null ? 1 : weights[e];
+                }
+            }
+            for (int t = 0; t < numTouched; t++) {
+                int d = touched[t];
+                sources[numEdges] = c;
+                destinations[numEdges] = d;
+                // within a community, every edge was seen from both of its ends
+                edgeWeights[numEdges] = d == c ? weightToCommunity[d] / 2 : weightToCommunity[d];
+                numEdges++;
+                weightToCommunity[d] = 0;
+                isTouched[d] = false;
+            }
+        }
+        return new CSRGraph(numCommunities, sources, destinations, edgeWeights, numEdges);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.network;
+
+import javastraw.feature2D.Feature2D;
+import javastraw.reader.Dataset;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.NormalizationType;
+import javastraw.tools.HiCFileTools;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loop network of one chromosome weighted by the Hi-C signal. Nodes are loop anchors (both ends of
+ * every loop clustered in one sweep) and each loop links its two anchors. An edge is weighted by the
+ * contact value between the anchor centers, and each loop also records the value at its own pixel.
+ * Only the blocks that contain a needed pixel are read.
+ */
+public class WeightedLoopNetwork {
+
+    private static final int MAX_HUB_ITERATIONS = 100;
+    private static final double HUB_TOLERANCE = 1e-9;
+
+    private final int[] anchorForEnd;
+    private final float[] loopContacts;
+    private final float[] anchorPairContacts;
+    private final double[] weightedDegrees;
+    private final double[] hubScores;
+    private final int[] communities;
+
+    public WeightedLoopNetwork(Dataset ds, Chromosome chromosome, int resolution, NormalizationType norm,
+                               List<Feature2D> loops, int bufferWidth) {
+        int numLoops = loops.size();
+        long[] endMids = new long[2 * numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            endMids[2 * i] = loops.get(i).getMidPt1() / resolution;
+            endMids[2 * i + 1] = loops.get(i).getMidPt2() / resolution;
+        }
+        LoopAnchorClusters anchors = new LoopAnchorClusters(endMids, bufferWidth);
+        anchorForEnd = anchors.getAnchorForEachID();
+
+        // one pixel per loop, plus one per distinct pair of anchors
+        long[] pixels = new long[2 * numLoops];
+        long[] anchorPairs = new long[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            pixels[2 * i] = packPixel(endMids[2 * i], endMids[2 * i + 1]);
+            int a1 = anchorForEnd[2 * i];
+            int a2 = anchorForEnd[2 * i + 1];
+            pixels[2 * i + 1] = packPixel(anchors.getAnchorCenter(a1), anchors.getAnchorCenter(a2));
+            anchorPairs[i] = packPixel(Math.min(a1, a2), Math.max(a1, a2));
+        }
+        pixels = sortedUnique(pixels);
+        float[] values = readPixels(ds, chromosome, resolution, norm, pixels);
+
+        loopContacts = new float[numLoops];
+        anchorPairContacts = new float[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loopContacts[i] = values[Arrays.binarySearch(pixels, packPixel(endMids[2 * i], endMids[2 * i + 1]))];
+            int a1 = anchorForEnd[2 * i];
+            int a2 = anchorForEnd[2 * i + 1];
+            anchorPairContacts[i] = values[Arrays.binarySearch(pixels,
+                    packPixel(anchors.getAnchorCenter(a1), anchors.getAnchorCenter(a2)))];
+        }
+
+        CSRGraph graph = buildGraph(anchors, sortedUnique(anchorPairs), values, pixels);
+        weightedDegrees = new double[graph.getNumNodes()];
+        for (int a = 0; a < weightedDegrees.length; a++) {
+            weightedDegrees[a] = graph.getWeightedDegree(a);
+        }
+        hubScores = getHubScores(graph);
+        communities = LouvainCommunities.getCommunities(graph);
+    }
+
+    /**
+     * upper-triangular (x <= y) bin pair packed into one long
+     */
+    private static long packPixel(long bin1, long bin2) {
+        return (Math.min(bin1, bin2) << 32) | Math.max(bin1, bin2);
+    }
+
+    private static long[] sortedUnique(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int counter = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            if (k == 0 || sorted[k] != sorted[counter - 1]) {
+                sorted[counter++] = sorted[k];
+            }
+        }
+        return Arrays.copyOf(sorted, counter);
+    }
+
+    /**
+     * @return contact value for each packed pixel; 0 where there is no record or the value isn't finite
+     */
+    private static float[] readPixels(Dataset ds, Chromosome chromosome, int resolution,
+                                      NormalizationType norm, long[] pixels) {
+        float[] values = new float[pixels.length];
+        if (pixels.length == 0) return values;
+
+        final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chromosome, chromosome, resolution);
+        if (zd == null) return values;
+
+        // only the block cells that contain a requested pixel are read, one at a time
+        long blockBinCount = zd.getBlockBinCount();
+        long[] cells = new long[pixels.length];
+        for (int k = 0; k < pixels.length; k++) {
+            cells[k] = packPixel((pixels[k] >> 32) / blockBinCount, ((int) pixels[k]) / blockBinCount);
+        }
+        cells = sortedUnique(cells);
+
+        try {
+            for (long cell : cells) {
+                long x0 = (cell >> 32) * blockBinCount;
+                long y0 = ((int) cell) * blockBinCount;
+                List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd, x0, x0 + blockBinCount,
+                        y0, y0 + blockBinCount, norm, false);
+                for (Block b : blocks) {
+                    if (b != null) {
+                        for (ContactRecord cr : b.getContactRecords()) {
+                            int index = Arrays.binarySearch(pixels, packPixel(cr.getBinX(), cr.getBinY()));
+                            float val = cr.getCounts();
+                            if (index >= 0 && !Float.isNaN(val) && !Float.isInfinite(val)) {
+                                values[index] = val;
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Unable to read loop contacts for " + chromosome.getName());
+            e.printStackTrace();
+        }
+        return values;
+    }
+
+    private static CSRGraph buildGraph(LoopAnchorClusters anchors, long[] anchorPairs,
+                                       float[] values, long[] pixels) {
+        int[] sources = new int[anchorPairs.length];
+        int[] destinations = new int[anchorPairs.length];
+        double[] weights = new double[anchorPairs.length];
+        int numEdges = 0;
+        for (long pair : anchorPairs) {
+            int a1 = (int) (pair >> 32);
+            int a2 = (int) pair;
+            if (a1 == a2) continue; // both ends of the loop fall in the same anchor
+            sources[numEdges] = a1;
+            destinations[numEdges] = a2;
+            weights[numEdges] = values[Arrays.binarySearch(pixels,
+                    packPixel(anchors.getAnchorCenter(a1), anchors.getAnchorCenter(a2)))];
+            numEdges++;
+        }
+        return new CSRGraph(anchors.getNumAnchors(), sources, destinations, weights, numEdges);
+    }
+
+    /**
+     * eigenvector centrality by power iteration on (A + I), which converges on bipartite graphs too;
+     * scaled so the top hub in the chromosome scores 1
+     */
+    private static double[] getHubScores(CSRGraph graph) {
+        int n = graph.getNumNodes();
+        int[] offsets = graph.getOffsets();
+        int[] targets = graph.getTargets();
+        double[] weights = graph.getWeights();
+
+        double[] scores = new double[n];
+        Arrays.fill(scores, 1);
+        double[] next = new double[n];
+        for (int iter = 0; iter < MAX_HUB_ITERATIONS; iter++) {
+            double max = 0;
+            for (int i = 0; i < n; i++) {
+                double total = scores[i];
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                    total += weights[e] * scores[targets[e]];
+                }
+                next[i] = total;
+                max = Math.max(max, total);
+            }
+            if (max <= 0) break;
+
+            double change = 0;
+            for (int i = 0; i < n; i++) {
+                next[i] /= max;
+                change += Math.abs(next[i] - scores[i]);
+            }
+            double[] temp = scores;
+            scores = next;
+            next = temp;
+            if (change < HUB_TOLERANCE * n) break;
+        }
+        return scores;
+    }
+
+    /**
+     * adds the contact values and the network statistics of each loop's two anchors as attributes,
+     * which the BEDPE export writes as extra columns
+     */
+    public void addAttributes(List<Feature2D> loops) {
+        for (int i = 0; i < loops.size(); i++) {
+            Feature2D loop = loops.get(i);
+            int a1 = anchorForEnd[2 * i];
+            int a2 = anchorForEnd[2 * i + 1];
+            loop.addStringAttribute("loop_contact", "" + loopContacts[i]);
+            loop.addStringAttribute("anchor_contact", "" + anchorPairContacts[i]);
+            loop.addStringAttribute("weighted_degree1", "" + (float) weightedDegrees[a1]);
+            loop.addStringAttribute("weighted_degree2", "" + (float) weightedDegrees[a2]);
+            loop.addStringAttribute("hub_score1", "" + (float) hubScores[a1]);
+            loop.addStringAttribute("hub_score2", "" + (float) hubScores[a2]);
+            loop.addStringAttribute("community1", "" + communities[a1]);
+            loop.addStringAttribute("community2", "" + communities[a2]);
+        }
+    }
+}
@@ -29,7 +29,6 @@ import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.type.NormalizationType;
 import mixer.clt.ParallelizedMixerTools;
-import mixer.utils.common.FloatMatrixTools;
 import mixer.utils.matrix.*;
 import mixer.utils.shuffle.stats.GenomeWideStatistics;
 import mixer.utils.similaritymeasures.SimilarityMetric;
@@ -48,7 +47,9 @@ public class ShuffleAction {
     private final NormalizationType norm;
     private final int compressionFactor;
     private final int resolution;
-    private final int numRounds = 50;
+    public static int MIN_ROUNDS = 10, MAX_ROUNDS = 100;
+    public static double ROUNDS_TOLERANCE = 0.01;
+    private static final int ROUNDS_PER_BATCH = 10;
     private final InterOnlyMatrix.InterMapType[] mapTypes = {InterOnlyMatrix.InterMapType.ODDS_VS_EVENS,
             InterOnlyMatrix.InterMapType.SKIP_BY_TWOS, InterOnlyMatrix.InterMapType.FIRST_HALF_VS_SECOND_HALF};
     private final SimilarityMetric metric;
@@ -57,6 +58,13 @@ public class ShuffleAction {
     private HiCMatrix.INTRA_TYPE intraType = HiCMatrix.INTRA_TYPE.DEFAULT;
     private boolean isIntra = false;
     private final boolean useSymmetry;
+    private InterMatrixCache matrixCache = null;
+
+    public ShuffleAction(Dataset ds, NormalizationType norm, int resolution, int compressionFactor,
+                         SimilarityMetric metric, boolean useSymmetry, InterMatrixCache matrixCache) {
+        this(ds, norm, resolution, compressionFactor, metric, useSymmetry);
+        this.matrixCache = matrixCache;
+    }
 
     public ShuffleAction(Dataset ds, NormalizationType norm, int resolution, int compressionFactor,
                          SimilarityMetric metric, boolean useSymmetry) {
@@ -88,16 +96,30 @@ public class ShuffleAction {
     public void runInterAnalysis(GenomeWide1DList<SubcompartmentInterval> subcompartments, File outfolder,
                                  Random generator) {
         for (int y = 0; y < mapTypes.length; y++) {
-            final HiCMatrix interMatrix = InterOnlyMatrix.getMatrix(ds, norm, resolution, mapTypes[y], metric);
+            final HiCMatrix interMatrix = getInterMatrix(mapTypes[y]);
             Map<Integer, List<Integer>> clusterToRowIndices = CHICTools.populateCluster(interMatrix.getRowChromosomes(),
                     interMatrix.getRowOffsets(), subcompartments, resolution);
             Map<Integer, List<Integer>> clusterToColIndices = CHICTools.populateCluster(interMatrix.getColChromosomes(),
                     interMatrix.getColOffsets(), subcompartments, resolution);
             shuffleMap(interMatrix, clusterToRowIndices, clusterToColIndices, outfolder, mapTypes[y].toString(), y, generator);
+            releaseInterMatrix(mapTypes[y]);
         }
         scoreContainer.calculateRatios();
     }
 
+    private HiCMatrix getInterMatrix(InterOnlyMatrix.InterMapType mapType) {
+        if (matrixCache != null) {
+            return matrixCache.get(mapType);
+        }
+        return InterOnlyMatrix.getMatrix(ds, norm, resolution, mapType, metric);
+    }
+
+    private void releaseInterMatrix(InterOnlyMatrix.InterMapType mapType) {
+        if (matrixCache != null) {
+            matrixCache.release(mapType);
+        }
+    }
+
     public void runIntraAnalysis(GenomeWide1DList<SubcompartmentInterval> subcompartments, File outfolder, Random generator) {
         for (int y = 0; y < chromosomes.length; y++) {
             final HiCMatrix matrix = new IntraOnlyMatrix(ds, norm, resolution, chromosomes[y], intraType, metric, compressionFactor);
@@ -133,46 +155,133 @@ public class ShuffleAction {
         return seeds;
     }
 
+    /**
+     * rounds run in batches; each batch's own aggregate is scored, and shuffling stops once the
+     * standard error of the batch scores is within ROUNDS_TOLERANCE of their mean for every score
+     * (after at least MIN_ROUNDS and at most MAX_ROUNDS rounds)
+     */
     private void shuffleMap(HiCMatrix interMatrix, Map<Integer, List<Integer>> clusterToRowIndices,
                             Map<Integer, List<Integer>> clusterToColIndices,
                             File outfolder, String name, int mapIndex, Random random) {
 
-        final AggregateMatrix aggregate = new AggregateMatrix();
-        AtomicInteger currRowIndex = new AtomicInteger(0);
-        long[] seeds = getSeedsForRound(random, numRounds);
-
         final ShuffledIndices[] globalAllIndices = new ShuffledIndices[2];
         Random gen = new Random(random.nextLong());
         globalAllIndices[0] = getShuffledByClusterIndices(clusterToRowIndices, gen);
         globalAllIndices[1] = getShuffledByClusterIndices(clusterToColIndices, gen);
 
-        ParallelizedMixerTools.launchParallelizedCode(() -> {
-            int k = currRowIndex.getAndIncrement();
-            AggregateMatrix aggregateForThread = new AggregateMatrix();
-            while (k < numRounds) {
-                Random generator = new Random(seeds[k]);
-                ShuffledIndices allRowIndices = getShuffledByClusterIndices(clusterToRowIndices, generator);
-                ShuffledIndices allColIndices = allRowIndices;
-                if (!isIntra) {
-                    allColIndices = getShuffledByClusterIndices(clusterToColIndices, generator);
-                }
+        final ClusterPermutation rowTemplate = new ClusterPermutation(clusterToRowIndices, compressionFactor);
+        final ClusterPermutation colTemplate = isIntra ? rowTemplate :
+                new ClusterPermutation(clusterToColIndices, compressionFactor);
 
-                double[][] matrix = getShuffledMatrix(interMatrix, allRowIndices.allIndices, allColIndices.allIndices);
-                FloatMatrixTools.log(matrix, 1);
-                aggregateForThread.add(matrix);
-                k = currRowIndex.getAndIncrement();
-            }
+        final int numRows = rowTemplate.getNumKept() / compressionFactor;
+        final int numCols = colTemplate.getNumKept() / compressionFactor;
 
-            synchronized (aggregate) {
-                if (aggregateForThread.hasData()) {
-                    aggregate.add(aggregateForThread);
-                }
+        // per-thread state lives for the whole sweep; a batch never has more than ROUNDS_PER_BATCH rounds
+        int numThreads = Math.min(ROUNDS_PER_BATCH, ParallelizedMixerTools.getNumThreads());
+        final RoundWorker[] workers = new RoundWorker[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            workers[t] = new RoundWorker(rowTemplate, colTemplate, numRows, numCols);
+        }
+
+        // each batch is folded into the running aggregate as soon as it has been scored
+        final AggregateMatrix aggregate = new AggregateMatrix(numRows, numCols);
+        List<float[]> batchScores = new ArrayList<>();
+        int numRounds = 0;
+        while (numRounds < MAX_ROUNDS) {
+            int batchSize = Math.min(ROUNDS_PER_BATCH, MAX_ROUNDS - numRounds);
+            AggregateMatrix batch = runShuffleRounds(interMatrix.getMatrix(), workers,
+                    getSeedsForRound(random, batchSize));
+            numRounds += batchSize;
+
+            batchScores.add(ScoreContainer.updateAggMatrixScores(batch.getFloatMatrix(1.0 / batchSize),
+                    globalAllIndices[0], globalAllIndices[1], false, useSymmetry));
+            AggregateMatrix.reduce(Arrays.asList(aggregate, batch), 1);
+
+            if (numRounds >= MIN_ROUNDS && hasConverged(batchScores)) {
+                break;
             }
-        });
+        }
 
-        aggregate.scaleForNumberOfRounds(numRounds);
+        AggregateMatrix.reduce(Collections.singletonList(aggregate), 1.0 / numRounds);
         aggregate.saveToPNG(outfolder, name);
         scoreContainer.updateAggregateScores(aggregate, globalAllIndices, mapIndex, useSymmetry);
+        scoreContainer.setNumRounds(mapIndex, numRounds);
+    }
+
+    private static boolean hasConverged(List<float[]> batchScores) {
+        int numBatches = batchScores.size();
+        if (numBatches < 2) return false;
+        for (int z = 0; z < batchScores.get(0).length; z++) {
+            double mean = 0;
+            for (float[] scores : batchScores) {
+                mean += scores[z];
+            }
+            mean /= numBatches;
+
+            double squares = 0;
+            for (float[] scores : batchScores) {
+                double diff = scores[z] - mean;
+                squares += diff * diff;
+            }
+            double standardError = Math.sqrt(squares / (numBatches - 1) / numBatches);
+            if (standardError > ROUNDS_TOLERANCE * Math.abs(mean)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * thread t runs rounds t, t + numThreads, ... with workers[t]; the partials are then reduced in
+     * thread order, so the result is reproducible for a given seed and thread count
+     */
+    private AggregateMatrix runShuffleRounds(float[][] original, RoundWorker[] workers, long[] seeds) {
+        final int numThreads = workers.length;
+        AtomicInteger currThreadIndex = new AtomicInteger(0);
+
+        ParallelizedMixerTools.launchParallelizedCode(numThreads, () -> {
+            int t = currThreadIndex.getAndIncrement();
+            workers[t].aggregate.clear();
+            for (int k = t; k < seeds.length; k += numThreads) {
+                workers[t].runRound(original, seeds[k]);
+            }
+        });
+
+        List<AggregateMatrix> orderedPartials = new ArrayList<>();
+        for (int t = 0; t < Math.min(numThreads, seeds.length); t++) {
+            orderedPartials.add(workers[t].aggregate);
+        }
+        return AggregateMatrix.reduce(orderedPartials, 1);
+    }
+
+    /**
+     * everything a round touches, allocated once per thread for the whole sweep
+     */
+    private class RoundWorker {
+        private final ClusterPermutation rowPermutation, colPermutation;
+        private final int[] keptRows, keptCols;
+        private final double[] rowBuffer;
+        private final AggregateMatrix aggregate;
+
+        RoundWorker(ClusterPermutation rowTemplate, ClusterPermutation colTemplate, int numRows, int numCols) {
+            rowPermutation = new ClusterPermutation(rowTemplate);
+            colPermutation = isIntra ? rowPermutation : new ClusterPermutation(colTemplate);
+            keptRows = new int[rowTemplate.getNumKept()];
+            keptCols = isIntra ? keptRows : new int[colTemplate.getNumKept()];
+            rowBuffer = new double[numCols];
+            aggregate = new AggregateMatrix(numRows, numCols);
+        }
+
+        void runRound(float[][] original, long seed) {
+            SplittableRandom generator = new SplittableRandom(seed);
+            rowPermutation.shuffle(generator);
+            rowPermutation.fillKept(keptRows);
+            if (!isIntra) {
+                colPermutation.shuffle(generator);
+                colPermutation.fillKept(keptCols);
+            }
+            addLogOfShuffledMatrix(original, keptRows, keptCols, rowBuffer, aggregate);
+        }
     }
 
     private ShuffledIndices getShuffledByClusterIndices(Map<Integer, List<Integer>> clusterToIndices,
@@ -200,22 +309,28 @@ public class ShuffleAction {
         return new ShuffledIndices(allIndices, boundaries.toArray(new Integer[0]), order.toArray(new Integer[0]));
     }
 
-    private double[][] getShuffledMatrix(HiCMatrix interMatrix, List<Integer> allRowIndices, List<Integer> allColIndices) {
-        int numRows = allRowIndices.size() / compressionFactor;
-        int numCols = allColIndices.size() / compressionFactor;
-        int numRowsKept = numRows * compressionFactor;
-        int numColsKept = numCols * compressionFactor;
-        float[][] original = interMatrix.getMatrix();
-
-        double[][] result = new double[numRows][numCols];
-        for (int i = 0; i < numRowsKept; i++) {
-            final int i0 = allRowIndices.get(i);
-            for (int j = 0; j < numColsKept; j++) {
-                final int j0 = allColIndices.get(j);
-                result[i / compressionFactor][j / compressionFactor] += original[i0][j0];
+    /**
+     * compresses one block-row of the shuffled matrix at a time into rowBuffer
+     * and adds log(1 + value) straight into the aggregate
+     */
+    private void addLogOfShuffledMatrix(float[][] original, int[] keptRows, int[] keptCols,
+                                        double[] rowBuffer, AggregateMatrix aggregate) {
+        for (int bi = 0; bi < aggregate.getNumRows(); bi++) {
+            Arrays.fill(rowBuffer, 0);
+            for (int i = bi * compressionFactor; i < (bi + 1) * compressionFactor; i++) {
+                final float[] row = original[keptRows[i]];
+                int j = 0;
+                for (int bj = 0; bj < rowBuffer.length; bj++) {
+                    double sum = 0;
+                    for (int t = 0; t < compressionFactor; t++, j++) {
+                        sum += row[keptCols[j]];
+                    }
+                    rowBuffer[bj] += sum;
+                }
+            }
+            for (int bj = 0; bj < rowBuffer.length; bj++) {
+                aggregate.add(bi, bj, Math.log(rowBuffer[bj] + 1));
             }
         }
-
-        return result;
     }
 }
@@ -26,9 +26,6 @@ package mixer.utils.shuffle.scoring;
 
 import mixer.utils.matrix.ShuffledIndices;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class KLDivergenceScoring extends ShuffleScore {
     private final boolean matrixIsP;
 
@@ -38,28 +35,36 @@ public class KLDivergenceScoring extends ShuffleScore {
         this.matrixIsP = matrixIsP;
     }
 
+    public KLDivergenceScoring(RegionStatistics statistics, ShuffledIndices rowBounds, ShuffledIndices colBounds,
+                               boolean matrixIsP, boolean useSymmetry) {
+        super(statistics, rowBounds, colBounds, useSymmetry);
+        this.matrixIsP = matrixIsP;
+    }
+
+    /**
+     * with p = x / total and q = (group mean) / total, per region:
+     * sum p log(p/q) = (sum x log x) / total - (sum x / total) * log(total * q)
+     * sum q log(q/p) = n q log(q * total) - q * (sum log x)
+     */
     @Override
-    protected float score(Integer[] rBounds, Integer[] cBounds, Integer[] rIDs, Integer[] cIDs) {
-        Map<String, Double> sumMap = new HashMap<>();
-        Map<String, Long> numRegionMap = new HashMap<>();
-        populateMeanMap(sumMap, numRegionMap);
-        double sumTotal = getTotalSum(sumMap);
+    protected float score() {
+        double sumTotal = getTotalSum();
+        double logTotal = Math.log(sumTotal);
 
         double klDivergence = 0;
-        for (int rI = 0; rI < rBounds.length - 1; rI++) {
-            for (int cI = 0; cI < cBounds.length - 1; cI++) {
-                String key = getKey(rI, cI);
-                double q = (sumMap.get(key) / numRegionMap.get(key)) / sumTotal;
-                if (numRegionMap.get(key) > 0) {
-                    for (int i = rBounds[rI]; i < rBounds[rI + 1]; i++) {
-                        for (int j = cBounds[cI]; j < cBounds[cI + 1]; j++) {
-                            double p = matrix[i][j] / sumTotal;
-                            if (matrixIsP) {
-                                klDivergence += p * Math.log(p / q);
-                            } else {
-                                klDivergence += q * Math.log(q / p);
-                            }
-                        }
+        for (int rI = 0; rI < regionSums.length; rI++) {
+            for (int cI = 0; cI < regionSums[rI].length; cI++) {
+                int group = regionGroup[rI][cI];
+                if (groupCounts[group] > 0) {
+                    double mu = groupSums[group] / groupCounts[group];
+                    double q = mu / sumTotal;
+                    if (matrixIsP) {
+                        if (regionSums[rI][cI] == 0) continue; // only zeros, and 0 log 0 = 0
+                        klDivergence += regionXLogX[rI][cI] / sumTotal
+                                - (regionSums[rI][cI] / sumTotal) * (logTotal + Math.log(q));
+                    } else {
+                        klDivergence += regionCounts[rI][cI] * q * Math.log(mu)
+                                - q * getRegionSumOfLogs(rI, cI);
                     }
                 }
             }
@@ -67,12 +72,4 @@ public class KLDivergenceScoring extends ShuffleScore {
 
         return (float) klDivergence;
     }
-
-    private double getTotalSum(Map<String, Double> sumMap) {
-        double total = 0;
-        for (Double val : sumMap.values()) {
-            total += val;
-        }
-        return total;
-    }
 }
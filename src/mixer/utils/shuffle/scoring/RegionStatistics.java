@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.shuffle.scoring;
+
+/**
+ * 2D prefix sums of a matrix's values, squares, x*log(x) and log(x), so that the totals
+ * over any rectangle of the matrix come out in O(1). Built once per aggregate and shared
+ * by every score (and by the baseline and shuffled variants of each score).
+ */
+public class RegionStatistics {
+    private final double[][] sums;
+    private final double[][] squares;
+    private final double[][] xLogX;
+    private final float[][] matrix;
+    private final int numRows, numCols;
+    // only needed for KL divergence with the matrix as Q, so built on first use
+    private double[][] logs;
+    private int[][] zeros, negatives;
+
+    public RegionStatistics(float[][] matrix) {
+        this.matrix = matrix;
+        numRows = matrix.length;
+        numCols = matrix[0].length;
+        sums = new double[numRows + 1][numCols + 1];
+        squares = new double[numRows + 1][numCols + 1];
+        xLogX = new double[numRows + 1][numCols + 1];
+
+        for (int i = 0; i < numRows; i++) {
+            double rowSum = 0, rowSquares = 0, rowXLogX = 0;
+            for (int j = 0; j < numCols; j++) {
+                double x = matrix[i][j];
+                rowSum += x;
+                rowSquares += x * x;
+                if (x > 0) {
+                    rowXLogX += x * Math.log(x); // 0 log 0 = 0
+                }
+                sums[i + 1][j + 1] = sums[i][j + 1] + rowSum;
+                squares[i + 1][j + 1] = squares[i][j + 1] + rowSquares;
+                xLogX[i + 1][j + 1] = xLogX[i][j + 1] + rowXLogX;
+            }
+        }
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumCols() {
+        return numCols;
+    }
+
+    public double getSum(int r0, int r1, int c0, int c1) {
+        return rectangle(sums, r0, r1, c0, c1);
+    }
+
+    public double getSumOfSquares(int r0, int r1, int c0, int c1) {
+        return rectangle(squares, r0, r1, c0, c1);
+    }
+
+    public double getSumOfXLogX(int r0, int r1, int c0, int c1) {
+        return rectangle(xLogX, r0, r1, c0, c1);
+    }
+
+    /**
+     * matches summing Math.log directly: -Infinity if the region has a zero, NaN if it has a negative
+     */
+    public synchronized double getSumOfLogs(int r0, int r1, int c0, int c1) {
+        if (logs == null) {
+            buildLogTables();
+        }
+        if (rectangle(negatives, r0, r1, c0, c1) > 0) {
+            return Double.NaN;
+        }
+        if (rectangle(zeros, r0, r1, c0, c1) > 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return rectangle(logs, r0, r1, c0, c1);
+    }
+
+    // zeros and negatives are counted separately so one bad entry doesn't poison the whole prefix table
+    private void buildLogTables() {
+        logs = new double[numRows + 1][numCols + 1];
+        zeros = new int[numRows + 1][numCols + 1];
+        negatives = new int[numRows + 1][numCols + 1];
+        for (int i = 0; i < numRows; i++) {
+            double rowLogs = 0;
+            int rowZeros = 0, rowNegatives = 0;
+            for (int j = 0; j < numCols; j++) {
+                float x = matrix[i][j];
+                if (x > 0) {
+                    rowLogs += Math.log(x);
+                } else if (x == 0) {
+                    rowZeros++;
+                } else {
+                    rowNegatives++;
+                }
+                logs[i + 1][j + 1] = logs[i][j + 1] + rowLogs;
+                zeros[i + 1][j + 1] = zeros[i][j + 1] + rowZeros;
+                negatives[i + 1][j + 1] = negatives[i][j + 1] + rowNegatives;
+            }
+        }
+    }
+
+    /**
+     * rows [r0, r1) and columns [c0, c1)
+     */
+    private static double rectangle(double[][] prefix, int r0, int r1, int c0, int c1) {
+        return prefix[r1][c1] - prefix[r0][c1] - prefix[r1][c0] + prefix[r0][c0];
+    }
+
+    private static int rectangle(int[][] prefix, int r0, int r1, int c0, int c1) {
+        return prefix[r1][c1] - prefix[r0][c1] - prefix[r1][c0] + prefix[r0][c0];
+    }
+}
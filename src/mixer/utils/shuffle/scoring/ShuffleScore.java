@@ -26,72 +26,150 @@ package mixer.utils.shuffle.scoring;
 
 import mixer.utils.matrix.ShuffledIndices;
 
-import java.util.Map;
+import java.util.Arrays;
 
 public abstract class ShuffleScore {
-    protected final float[][] matrix;
+    protected final RegionStatistics statistics;
     protected final ShuffledIndices rBounds;
     protected final ShuffledIndices cBounds;
     private final boolean useSymmetry;
 
+    // group means always come from the clustered bounds; regions that share a key
+    // (e.g. A-B and B-A under symmetry) are pooled into one group
+    protected final double[] groupSums;
+    protected final long[] groupCounts;
+    private final int[][] clusteredRegionGroup;
+
+    // the regions being scored, filled in by score(isBaseline)
+    protected double[][] regionSums, regionSquares, regionXLogX;
+    protected long[][] regionCounts;
+    protected int[][] regionGroup;
+    private Integer[] regionRowBounds, regionColBounds;
+
     public ShuffleScore(float[][] matrix, ShuffledIndices rBounds, ShuffledIndices cBounds, boolean useSymmetry) {
-        this.matrix = matrix;
+        this(new RegionStatistics(matrix), rBounds, cBounds, useSymmetry);
+    }
+
+    public ShuffleScore(RegionStatistics statistics, ShuffledIndices rBounds, ShuffledIndices cBounds,
+                        boolean useSymmetry) {
+        this.statistics = statistics;
         this.rBounds = rBounds;
         this.cBounds = cBounds;
         this.useSymmetry = useSymmetry;
+
+        int numRowRegions = rBounds.boundaries.length - 1;
+        int numColRegions = cBounds.boundaries.length - 1;
+        int[] rowOrdinals = new int[numRowRegions];
+        int[] colOrdinals = new int[numColRegions];
+        int numIDs = getOrdinals(rBounds.ids, cBounds.ids, rowOrdinals, colOrdinals);
+        int numGroups = useSymmetry ? numIDs * numIDs : numRowRegions * numColRegions;
+        groupSums = new double[numGroups];
+        groupCounts = new long[numGroups];
+        clusteredRegionGroup = new int[numRowRegions][numColRegions];
+
+        for (int rI = 0; rI < numRowRegions; rI++) {
+            int r0 = rBounds.boundaries[rI], r1 = rBounds.boundaries[rI + 1];
+            for (int cI = 0; cI < numColRegions; cI++) {
+                int c0 = cBounds.boundaries[cI], c1 = cBounds.boundaries[cI + 1];
+                int group;
+                if (useSymmetry) {
+                    int id1 = Math.min(rowOrdinals[rI], colOrdinals[cI]);
+                    int id2 = Math.max(rowOrdinals[rI], colOrdinals[cI]);
+                    group = id1 * numIDs + id2;
+                } else {
+                    group = rI * numColRegions + cI;
+                }
+                clusteredRegionGroup[rI][cI] = group;
+                groupSums[group] += statistics.getSum(r0, r1, c0, c1);
+                groupCounts[group] += (long) (r1 - r0) * (c1 - c0);
+            }
+        }
     }
 
     public float score(boolean isBaseline) {
         if (isBaseline) {
             return baselineScore();
         }
-        return score(rBounds.boundaries, cBounds.boundaries,
-                rBounds.ids, cBounds.ids);
+        populateRegions(rBounds.boundaries, cBounds.boundaries, clusteredRegionGroup);
+        return score();
     }
 
+    /**
+     * the whole map as a single region, compared against the group of its first block
+     */
     private float baselineScore() {
-        return score(new Integer[]{0, matrix.length},
-                new Integer[]{0, matrix[0].length},
-                new Integer[]{0}, new Integer[]{0});
+        populateRegions(new Integer[]{0, statistics.getNumRows()},
+                new Integer[]{0, statistics.getNumCols()},
+                new int[][]{{clusteredRegionGroup[0][0]}});
+        return score();
     }
 
-    protected abstract float score(Integer[] rBounds, Integer[] cBounds,
-                                   Integer[] rIDs, Integer[] cIDs);
+    protected abstract float score();
 
-    protected String getKey(int rI, int cI) {
-        if (useSymmetry) {
-            int id1 = rBounds.ids[rI];
-            int id2 = cBounds.ids[cI];
-            if (id1 <= id2) return id1 + "_" + id2;
-            return id2 + "_" + id1;
+    protected long getTotalCount() {
+        long total = 0;
+        for (long count : groupCounts) {
+            total += count;
         }
-        return rI + "_" + cI;
+        return total;
     }
 
-    protected long populateMeanMap(Map<String, Double> sumMap, Map<String, Long> numRegionMap) {
-        long numElements = 0;
-        for (int rI = 0; rI < rBounds.boundaries.length - 1; rI++) {
-            for (int cI = 0; cI < cBounds.boundaries.length - 1; cI++) {
-                double sum = 0;
-                long numInRegion = 0;
-                for (int i = rBounds.boundaries[rI]; i < rBounds.boundaries[rI + 1]; i++) {
-                    for (int j = cBounds.boundaries[cI]; j < cBounds.boundaries[cI + 1]; j++) {
-                        sum += matrix[i][j];
-                        numInRegion++;
-                    }
-                }
+    protected double getTotalSum() {
+        double total = 0;
+        for (double sum : groupSums) {
+            total += sum;
+        }
+        return total;
+    }
 
-                String key = getKey(rI, cI);
-                if (sumMap.containsKey(key)) {
-                    sumMap.put(key, sumMap.get(key) + sum);
-                    numRegionMap.put(key, numRegionMap.get(key) + numInRegion);
-                } else {
-                    sumMap.put(key, sum);
-                    numRegionMap.put(key, numInRegion);
-                }
-                numElements += numInRegion;
+    protected double getRegionSumOfLogs(int rI, int cI) {
+        return statistics.getSumOfLogs(regionRowBounds[rI], regionRowBounds[rI + 1],
+                regionColBounds[cI], regionColBounds[cI + 1]);
+    }
+
+    private void populateRegions(Integer[] rowBounds, Integer[] colBounds, int[][] groups) {
+        int numRowRegions = rowBounds.length - 1;
+        int numColRegions = colBounds.length - 1;
+        regionRowBounds = rowBounds;
+        regionColBounds = colBounds;
+        regionGroup = groups;
+        regionSums = new double[numRowRegions][numColRegions];
+        regionSquares = new double[numRowRegions][numColRegions];
+        regionXLogX = new double[numRowRegions][numColRegions];
+        regionCounts = new long[numRowRegions][numColRegions];
+
+        for (int rI = 0; rI < numRowRegions; rI++) {
+            int r0 = rowBounds[rI], r1 = rowBounds[rI + 1];
+            for (int cI = 0; cI < numColRegions; cI++) {
+                int c0 = colBounds[cI], c1 = colBounds[cI + 1];
+                regionSums[rI][cI] = statistics.getSum(r0, r1, c0, c1);
+                regionSquares[rI][cI] = statistics.getSumOfSquares(r0, r1, c0, c1);
+                regionXLogX[rI][cI] = statistics.getSumOfXLogX(r0, r1, c0, c1);
+                regionCounts[rI][cI] = (long) (r1 - r0) * (c1 - c0);
             }
         }
-        return numElements;
+    }
+
+    /**
+     * maps the cluster ids of rows and columns onto shared ordinals 0..n-1
+     *
+     * @return n, the number of distinct ids
+     */
+    private static int getOrdinals(Integer[] rowIDs, Integer[] colIDs, int[] rowOrdinals, int[] colOrdinals) {
+        int[] allIDs = new int[rowOrdinals.length + colOrdinals.length];
+        for (int k = 0; k < rowOrdinals.length; k++) {
+            allIDs[k] = rowIDs[k];
+        }
+        for (int k = 0; k < colOrdinals.length; k++) {
+            allIDs[rowOrdinals.length + k] = colIDs[k];
+        }
+        int[] distinct = Arrays.stream(allIDs).sorted().distinct().toArray();
+        for (int k = 0; k < rowOrdinals.length; k++) {
+            rowOrdinals[k] = Arrays.binarySearch(distinct, rowIDs[k]);
+        }
+        for (int k = 0; k < colOrdinals.length; k++) {
+            colOrdinals[k] = Arrays.binarySearch(distinct, colIDs[k]);
+        }
+        return distinct.length;
     }
 }
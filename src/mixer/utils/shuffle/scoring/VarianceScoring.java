@@ -26,36 +26,32 @@ package mixer.utils.shuffle.scoring;
 
 import mixer.utils.matrix.ShuffledIndices;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class VarianceScoring extends ShuffleScore {
     public VarianceScoring(float[][] matrix, ShuffledIndices rBounds, ShuffledIndices cBounds, boolean useSymmetry) {
         super(matrix, rBounds, cBounds, useSymmetry);
     }
 
+    public VarianceScoring(RegionStatistics statistics, ShuffledIndices rBounds, ShuffledIndices cBounds,
+                           boolean useSymmetry) {
+        super(statistics, rBounds, cBounds, useSymmetry);
+    }
+
+    /**
+     * sum over regions of (x - mu)^2 = sum(x^2) - 2 mu sum(x) + n mu^2, with mu the mean of the region's group
+     */
     @Override
-    protected float score(Integer[] rBounds, Integer[] cBounds, Integer[] rIDs, Integer[] cIDs) {
+    protected float score() {
         double sumOfSquareErr = 0;
-        Map<String, Double> sumMap = new HashMap<>();
-        Map<String, Long> numRegionMap = new HashMap<>();
-        long numElements = populateMeanMap(sumMap, numRegionMap);
-
-
-        for (int rI = 0; rI < rBounds.length - 1; rI++) {
-            for (int cI = 0; cI < cBounds.length - 1; cI++) {
-                String key = getKey(rI, cI);
-                if (numRegionMap.get(key) > 0) {
-                    double mu = sumMap.get(key) / numRegionMap.get(key);
-                    for (int i = rBounds[rI]; i < rBounds[rI + 1]; i++) {
-                        for (int j = cBounds[cI]; j < cBounds[cI + 1]; j++) {
-                            double v = matrix[i][j] - mu;
-                            sumOfSquareErr += v * v;
-                        }
-                    }
+        for (int rI = 0; rI < regionSums.length; rI++) {
+            for (int cI = 0; cI < regionSums[rI].length; cI++) {
+                int group = regionGroup[rI][cI];
+                if (groupCounts[group] > 0) {
+                    double mu = groupSums[group] / groupCounts[group];
+                    sumOfSquareErr += regionSquares[rI][cI] - 2 * mu * regionSums[rI][cI]
+                            + regionCounts[rI][cI] * mu * mu;
                 }
             }
         }
-        return (float) (sumOfSquareErr / numElements);
+        return (float) (sumOfSquareErr / getTotalCount());
     }
 }
@@ -27,25 +27,25 @@ package mixer.utils.shuffle.stats;
 import javastraw.feature1D.GenomeWide1DList;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.common.FloatMatrixTools;
 import mixer.utils.common.InterMatrixBalancer;
 import mixer.utils.slice.structures.SubcompartmentInterval;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GenomeWideStatistics {
     private final Dataset ds;
     private final int resolution;
     private final NormalizationType norm;
     private final GenomeWide1DList<SubcompartmentInterval> subcompartments;
-    private final Set<Integer> clusterIDs = new HashSet<>();
-    private final Map<String, Double> contacts = new HashMap<>();
-    private final Map<String, Long> areas = new HashMap<>();
 
     private double totalContact = 0.0;
     private long totalCounts = 0L;
@@ -61,93 +61,131 @@ public class GenomeWideStatistics {
     }
 
     private void populateStatistics() {
-
         Chromosome[] chromosomes = ds.getChromosomeHandler().getAutosomalChromosomesArray();
-        for (int chr1 = 0; chr1 < chromosomes.length; chr1++) {
-            Chromosome chrom1 = chromosomes[chr1];
-            List<SubcompartmentInterval> intervals1 = subcompartments.getFeatures("" + chrom1.getIndex());
-            int lengthChr1 = (int) Math.ceil((float) chrom1.getLength() / resolution);
+        int[] ids = getSortedClusterIDs(chromosomes);
+        int k = ids.length;
+        contactsMatrix = new double[k][k];
+        countsMatrix = new long[k][k];
+
+        int[][] binToCluster = new int[chromosomes.length][];
+        long[][] binsPerCluster = new long[chromosomes.length][k];
+        for (int c = 0; c < chromosomes.length; c++) {
+            binToCluster[c] = getBinToClusterTable(chromosomes[c], ids, binsPerCluster[c]);
+        }
 
+        List<int[]> pairs = new ArrayList<>();
+        for (int chr1 = 0; chr1 < chromosomes.length; chr1++) {
             for (int chr2 = chr1 + 1; chr2 < chromosomes.length; chr2++) {
-                Chromosome chrom2 = chromosomes[chr2];
-                List<SubcompartmentInterval> intervals2 = subcompartments.getFeatures("" + chrom2.getIndex());
-                int lengthChr2 = (int) Math.ceil((float) chrom2.getLength() / resolution);
-
-                final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chrom1, chrom2, resolution);
-                if (zd == null) continue;
-                try {
-                    float[][] data = HiCFileTools.extractLocalBoundedRegionFloatMatrix(zd,
-                            0, lengthChr1, 0, lengthChr2,
-                            lengthChr1, lengthChr2, norm, false);
-                    populateCounts(FloatMatrixTools.cleanUpMatrix(data, true), intervals1, intervals2);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                pairs.add(new int[]{chr1, chr2});
             }
         }
 
-        convertResultToMatrix();
-    }
+        AtomicInteger currPairIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            double[][] localContacts = new double[k][k];
+            long[][] localAreas = new long[k][k];
+            double localTotalContact = 0;
 
-    private void populateCounts(float[][] data, List<SubcompartmentInterval> intervals1,
-                                List<SubcompartmentInterval> intervals2) {
-        for (SubcompartmentInterval interval1 : intervals1) {
-            int xStart = interval1.getX1() / resolution;
-            int xEnd = interval1.getX2() / resolution;
-
-            for (SubcompartmentInterval interval2 : intervals2) {
-                int yStart = interval2.getX1() / resolution;
-                int yEnd = interval2.getX2() / resolution;
-
-                String key = makeKey(interval1, interval2);
-                double contact = 0;
-                long area = 0;
-                if (contacts.containsKey(key)) {
-                    contact = contacts.get(key);
-                    area = areas.get(key);
-                }
+            int p = currPairIndex.getAndIncrement();
+            while (p < pairs.size()) {
+                int chr1 = pairs.get(p)[0];
+                int chr2 = pairs.get(p)[1];
+                localTotalContact += populateCounts(chromosomes[chr1], chromosomes[chr2],
+                        binToCluster[chr1], binToCluster[chr2],
+                        binsPerCluster[chr1], binsPerCluster[chr2], localContacts, localAreas);
+                p = currPairIndex.getAndIncrement();
+            }
 
-                for (int r = xStart; r < xEnd; r++) {
-                    for (int c = yStart; c < yEnd; c++) {
-                        float val = data[r][c];
-                        contact += val;
-                        totalContact += val;
+            synchronized (contactsMatrix) {
+                for (int i = 0; i < k; i++) {
+                    for (int j = 0; j < k; j++) {
+                        contactsMatrix[i][j] += localContacts[i][j];
+                        countsMatrix[i][j] += localAreas[i][j];
+                        totalCounts += localAreas[i][j];
                     }
                 }
-                int localArea = (xEnd - xStart) * (yEnd - yStart);
-                area += localArea;
-                totalCounts += localArea;
+                totalContact += localTotalContact;
+            }
+        });
+    }
 
-                contacts.put(key, contact);
-                areas.put(key, area);
+    /**
+     * streams the contact records of one chromosome pair once, binning each through the cluster tables
+     *
+     * @return total contact added
+     */
+    private double populateCounts(Chromosome chrom1, Chromosome chrom2, int[] clusters1, int[] clusters2,
+                                  long[] binsPerCluster1, long[] binsPerCluster2,
+                                  double[][] contacts, long[][] areas) {
+        final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chrom1, chrom2, resolution);
+        if (zd == null) return 0;
+
+        double total = 0;
+        try {
+            List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd, 0, clusters1.length,
+                    0, clusters2.length, norm, false);
+            for (Block b : blocks) {
+                if (b != null) {
+                    for (ContactRecord cr : b.getContactRecords()) {
+                        int x = cr.getBinX();
+                        int y = cr.getBinY();
+                        if (x >= clusters1.length || y >= clusters2.length) continue;
+                        int c1 = clusters1[x];
+                        int c2 = clusters2[y];
+                        float val = cr.getCounts();
+                        if (c1 < 0 || c2 < 0 || Float.isNaN(val) || Float.isInfinite(val)) continue;
+                        contacts[c1][c2] += val;
+                        total += val;
+                    }
+                }
             }
+        } catch (Exception e) {
+            System.err.println(chrom1.getName() + " - " + chrom2.getName());
+            e.printStackTrace();
+            return 0;
         }
-    }
 
-    private String makeKey(SubcompartmentInterval x, SubcompartmentInterval y) {
-        clusterIDs.add(x.getClusterID());
-        clusterIDs.add(y.getClusterID());
-        return x.getClusterID() + "_" + y.getClusterID();
+        for (int i = 0; i < binsPerCluster1.length; i++) {
+            for (int j = 0; j < binsPerCluster2.length; j++) {
+                areas[i][j] += binsPerCluster1[i] * binsPerCluster2[j];
+            }
+        }
+        return total;
     }
 
-    private String makeKey(int x, int y) {
-        return x + "_" + y;
+    private int[] getSortedClusterIDs(Chromosome[] chromosomes) {
+        Set<Integer> clusterIDs = new HashSet<>();
+        for (Chromosome chromosome : chromosomes) {
+            for (SubcompartmentInterval interval : subcompartments.getFeatures("" + chromosome.getIndex())) {
+                clusterIDs.add(interval.getClusterID());
+            }
+        }
+        int[] ids = new int[clusterIDs.size()];
+        int i = 0;
+        for (Integer id : clusterIDs) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        return ids;
     }
 
-    private void convertResultToMatrix() {
-        List<Integer> ids = new ArrayList<>(clusterIDs);
-        Collections.sort(ids);
-        contactsMatrix = new double[ids.size()][ids.size()];
-        countsMatrix = new long[ids.size()][ids.size()];
-        for (int i = 0; i < ids.size(); i++) {
-            for (int j = 0; j < ids.size(); j++) {
-                String key = makeKey(ids.get(i), ids.get(j));
-                if (contacts.containsKey(key)) {
-                    contactsMatrix[i][j] = contacts.get(key);
-                    countsMatrix[i][j] = areas.get(key);
-                }
+    /**
+     * @return index into the sorted cluster ids for each bin, or -1 for bins outside every interval
+     */
+    private int[] getBinToClusterTable(Chromosome chromosome, int[] ids, long[] binsPerCluster) {
+        int length = (int) Math.ceil((float) chromosome.getLength() / resolution);
+        int[] table = new int[length];
+        Arrays.fill(table, -1);
+        for (SubcompartmentInterval interval : subcompartments.getFeatures("" + chromosome.getIndex())) {
+            int cluster = Arrays.binarySearch(ids, interval.getClusterID());
+            int start = interval.getX1() / resolution;
+            int end = Math.min(interval.getX2() / resolution, length);
+            for (int bin = start; bin < end; bin++) {
+                table[bin] = cluster;
             }
+            binsPerCluster[cluster] += Math.max(end - start, 0);
         }
+        return table;
     }
 
     public float[][] getBasicResult() {
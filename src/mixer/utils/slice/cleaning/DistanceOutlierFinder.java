@@ -24,14 +24,50 @@
 
 package mixer.utils.slice.cleaning;
 
+import mixer.utils.common.ArrayTools;
+import mixer.utils.knn.KNNGraph;
+import mixer.utils.knn.NNDescent;
+
 import java.util.HashSet;
 import java.util.Set;
 
 public class DistanceOutlierFinder {
+    private static final float DIST_CUTOFF = 3;
+    private static final int NUM_NEIGHBORS = 15;
+
     public static Set<Integer> getOutliers(float[][] matrix, Set<Integer> badIndices) {
+        return getOutliers(NNDescent.build(matrix, NUM_NEIGHBORS, 0L), badIndices);
+    }
+
+    /**
+     * rows whose mean distance to their nearest neighbors is more than 3 std above average
+     */
+    public static Set<Integer> getOutliers(KNNGraph graph, Set<Integer> badIndices) {
+        float[] meanDist = new float[graph.getNumRows()];
+        for (int i = 0; i < meanDist.length; i++) {
+            if (badIndices.contains(i)) continue;
+            double total = 0;
+            int count = 0;
+            for (int r = 0; r < graph.getK(); r++) {
+                if (graph.getNeighbor(i, r) > -1) {
+                    total += graph.getDistance(i, r);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                meanDist[i] = (float) (total / count);
+            }
+        }
+
         Set<Integer> outliers = new HashSet<>();
-        QuickCentroids centroidMaker = new QuickCentroids(matrix, 200, 0L, 100);
-        float[][] centroids = centroidMaker.generateCentroids(5, true);
+        float mu = ArrayTools.getNonZeroMean(meanDist);
+        float std = ArrayTools.getNonZeroStd(meanDist, mu);
+        for (int k = 0; k < meanDist.length; k++) {
+            float zScore = (meanDist[k] - mu) / std;
+            if (zScore > DIST_CUTOFF) {
+                outliers.add(k);
+            }
+        }
         return outliers;
     }
 }
@@ -24,10 +24,12 @@
 
 package mixer.utils.slice.cleaning;
 
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.common.FloatMatrixTools;
 
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IntraMatrixCleaner {
 
@@ -86,37 +88,77 @@ public class IntraMatrixCleaner {
         }
     }
 
+    /**
+     * NaN entries are skipped in each window and stay NaN; each row keeps a running window sum,
+     * so the cost doesn't grow with the smoothing interval
+     */
     public static float[][] rollingAverage(float[][] matrix, int smoothingInterval) {
         int bufferWidth = smoothingInterval / 2;
-        for (int i = 0; i < matrix.length; i++) {
-            float[] tempRow = new float[matrix[i].length];
-            System.arraycopy(matrix[i], 0, tempRow, 0, tempRow.length);
-            for (int j = 0; j < tempRow.length; j++) {
-                if (Float.isNaN(tempRow[j])) continue;
-                int startK = Math.max(j - bufferWidth, 0);
-                int endK = Math.min(j + 1 + bufferWidth, tempRow.length);
-                float total = 0;
-                int numVals = 0;
-                for (int k = startK; k < endK; k++) {
-                    if (!Float.isNaN(tempRow[k])) {
-                        total += tempRow[k];
-                        numVals++;
-                    }
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            float[] tempRow = new float[0];
+            int i = currRowIndex.getAndIncrement();
+            while (i < matrix.length) {
+                if (tempRow.length != matrix[i].length) {
+                    tempRow = new float[matrix[i].length];
                 }
-                matrix[i][j] = total / Math.max(numVals, 1);
+                System.arraycopy(matrix[i], 0, tempRow, 0, tempRow.length);
+                rollingAverageForRow(tempRow, matrix[i], bufferWidth);
+                i = currRowIndex.getAndIncrement();
             }
-        }
+        });
         return matrix;
     }
 
+    private static void rollingAverageForRow(float[] original, float[] row, int bufferWidth) {
+        double total = 0;
+        int numVals = 0;
+        // window for j is [j - bufferWidth, j + bufferWidth], clipped to the row
+        for (int k = 0; k < Math.min(bufferWidth, original.length); k++) {
+            if (!Float.isNaN(original[k])) {
+                total += original[k];
+                numVals++;
+            }
+        }
+        for (int j = 0; j < original.length; j++) {
+            int entering = j + bufferWidth;
+            if (entering < original.length && !Float.isNaN(original[entering])) {
+                total += original[entering];
+                numVals++;
+            }
+            int leaving = j - bufferWidth - 1;
+            if (leaving >= 0 && !Float.isNaN(original[leaving])) {
+                total -= original[leaving];
+                numVals--;
+            }
+            if (!Float.isNaN(original[j])) {
+                row[j] = (float) (total / Math.max(numVals, 1));
+            }
+        }
+    }
+
+    /**
+     * sums each run of compressionFactor columns; NaNs propagate into their compressed entry
+     */
     public static float[][] compress(float[][] interMatrix, int compressionFactor) {
         int width = (int) Math.ceil(interMatrix[0].length / ((float) compressionFactor));
         float[][] result = new float[interMatrix.length][width];
-        for (int i = 0; i < interMatrix.length; i++) {
-            for (int j = 0; j < interMatrix[i].length; j++) {
-                result[i][j / compressionFactor] += interMatrix[i][j];
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            int i = currRowIndex.getAndIncrement();
+            while (i < interMatrix.length) {
+                float[] row = interMatrix[i];
+                for (int c = 0; c < width; c++) {
+                    int end = Math.min((c + 1) * compressionFactor, row.length);
+                    float total = 0;
+                    for (int j = c * compressionFactor; j < end; j++) {
+                        total += row[j];
+                    }
+                    result[i][c] = total;
+                }
+                i = currRowIndex.getAndIncrement();
             }
-        }
+        });
         return result;
     }
 
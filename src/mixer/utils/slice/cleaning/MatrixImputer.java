@@ -27,8 +27,10 @@ package mixer.utils.slice.cleaning;
 import javastraw.tools.MatrixTools;
 import javastraw.tools.ParallelizationTools;
 import mixer.utils.common.ArrayTools;
+import mixer.utils.common.FloatMatrixTools;
+import mixer.utils.knn.KNNGraph;
+import mixer.utils.knn.NNDescent;
 import mixer.utils.similaritymeasures.RobustCorrelationSimilarity;
-import mixer.utils.similaritymeasures.RobustEuclideanDistance;
 import mixer.utils.similaritymeasures.SimilarityMetric;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 
@@ -36,23 +38,38 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MatrixImputer {
+    private static final int NUM_NEIGHBORS = 30;
+    private static final int NUM_NEIGHBORS_PER_ENTRY = 2;
+
     public static float[][] getImputedMatrix(float[][] initialData) {
+        return getImputedMatrix(initialData, NNDescent.build(initialData, NUM_NEIGHBORS, 0L));
+    }
+
+    /**
+     * @param graph kNN graph over the rows of initialData, e.g. shared from the slice matrix
+     */
+    public static float[][] getImputedMatrix(float[][] initialData, KNNGraph graph) {
         float[][] imputed = MatrixTools.deepClone(initialData);
-        fillInImputedMatrix(imputed, initialData);
+        fillInImputedMatrix(imputed, initialData, graph);
         return imputed;
     }
 
-    private static void fillInImputedMatrix(float[][] imputed, float[][] initialData) {
+    /**
+     * Each missing entry is the mean of that column over the two nearest rows in the kNN graph
+     * that have it. Entries with no observed value among the neighbors fall back to the column mean.
+     */
+    private static void fillInImputedMatrix(float[][] imputed, float[][] initialData, KNNGraph graph) {
         System.out.println("Imputing...");
 
+        float[] columnMeans = FloatMatrixTools.getColNanMeans(initialData);
+
         AtomicInteger index = new AtomicInteger(0);
         ParallelizationTools.launchParallelizedCode(() -> {
             int i = index.getAndIncrement();
             while (i < imputed.length) {
                 BitSet yIsNan = getIsNan(imputed[i]);
                 if (yIsNan.cardinality() > 0) {
-                    int[] rowsToUse = getTwoNearestRows(yIsNan, imputed[i], initialData);
-                    updateImputedMatrixEntries(yIsNan, imputed[i], initialData, rowsToUse);
+                    updateImputedMatrixEntries(yIsNan, imputed[i], initialData, graph.getNeighbors(i), columnMeans);
                 }
                 i = index.getAndIncrement();
             }
@@ -61,23 +78,24 @@ public class MatrixImputer {
         System.out.println("Done imputing; Nans: " + numNans(initialData) + " -> " + numNans(imputed));
     }
 
-    private static void updateImputedMatrixEntries(BitSet yIsNan, float[] imputed, float[][] data, int[] rowsToUse) {
-        for (int j = 0; j < imputed.length; j++) {
-            if (yIsNan.get(j)) {
-                imputed[j] = getPredictedValue(rowsToUse, j, data);
-            }
+    private static void updateImputedMatrixEntries(BitSet yIsNan, float[] imputed, float[][] data,
+                                                   int[] sortedNeighbors, float[] columnMeans) {
+        for (int j = yIsNan.nextSetBit(0); j > -1; j = yIsNan.nextSetBit(j + 1)) {
+            imputed[j] = getPredictedValue(sortedNeighbors, j, data, columnMeans[j]);
         }
     }
 
-    private static float getPredictedValue(int[] rowIndices, int col, float[][] data) {
+    private static float getPredictedValue(int[] sortedNeighbors, int col, float[][] data, float fallback) {
         float val = 0;
         int count = 0;
-        for (int row : rowIndices) {
-            if (!Float.isNaN(data[row][col])) {
-                val += data[row][col];
+        for (int k = 0; k < sortedNeighbors.length && count < NUM_NEIGHBORS_PER_ENTRY; k++) {
+            float neighborVal = data[sortedNeighbors[k]][col];
+            if (!Float.isNaN(neighborVal)) {
+                val += neighborVal;
                 count++;
             }
         }
+        if (count < 1) return fallback;
         return val / count;
     }
 
@@ -110,46 +128,6 @@ public class MatrixImputer {
         return indexIsNan;
     }
 
-    private static int[] getTwoNearestRows(BitSet yIsNan, float[] vector, float[][] initialData) {
-
-        List<Integer> potentialIndicesToCheck = new ArrayList<>();
-        int colToCheck = yIsNan.nextSetBit(0);
-        if (colToCheck > -1) {
-            for (int i = 0; i < initialData.length; i++) {
-                if (Float.isNaN(initialData[i][colToCheck])) {
-                    continue;
-                }
-                potentialIndicesToCheck.add(i);
-            }
-        }
-
-        return getTwoNearestRowsFromList(potentialIndicesToCheck, vector, initialData);
-    }
-
-    private static int[] getTwoNearestRowsFromList(List<Integer> potentialIndicesToCheck, float[] vector, float[][] initialData) {
-        int[] closestIndices = new int[2];
-        float[] closestVals = new float[2];
-        Arrays.fill(closestIndices, -1);
-        Arrays.fill(closestVals, Float.MAX_VALUE);
-
-        for (int i : potentialIndicesToCheck) {
-            float dist = RobustEuclideanDistance.SINGLETON.distance(vector, initialData[i]);
-            if (dist < closestVals[1]) {
-                if (dist < closestVals[0]) {
-                    closestVals[1] = closestVals[0];
-                    closestIndices[1] = closestIndices[0];
-                    closestVals[0] = dist;
-                    closestIndices[0] = i;
-                } else {
-                    closestVals[1] = dist;
-                    closestIndices[1] = i;
-                }
-            }
-        }
-
-        return closestIndices;
-    }
-
     private static float[][] getR2Matrix(float[][] initialData) {
         float[][] r2 = new float[initialData.length][initialData.length];
 
@@ -206,11 +184,14 @@ public class MatrixImputer {
         return counter;
     }
 
+    /**
+     * a single pass leaves NaNs only in columns that have no observed values at all
+     */
     public static float[][] imputeUntilNoNansOnlyNN(float[][] data) {
-        float[][] newData = data;
-        do {
-            newData = getImputedMatrix(newData);
-        } while (checkIfHasNan(newData));
+        float[][] newData = getImputedMatrix(data);
+        if (checkIfHasNan(newData)) {
+            System.err.println("Some columns have no valid entries and could not be imputed");
+        }
         return newData;
     }
 
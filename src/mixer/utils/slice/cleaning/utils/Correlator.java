@@ -24,6 +24,9 @@
 
 package mixer.utils.slice.cleaning.utils;
 
+import mixer.utils.knn.KNNGraph;
+import mixer.utils.similaritymeasures.RobustCorrelationSimilarity;
+
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -33,9 +36,20 @@ public class Correlator {
     private final int cutoff;
     private final float[][] matrix;
     private final List<VectorGroup> groups = new ArrayList<>();
+    private final KNNGraph graph;
+    private final float threshold = 0.5f;
 
     public Correlator(float[][] matrix, boolean onlyUseCorr) {
+        this(matrix, onlyUseCorr, null);
+    }
+
+    /**
+     * @param graph if not null, rows are only compared against their graph neighbors
+     *              instead of against every existing group
+     */
+    public Correlator(float[][] matrix, boolean onlyUseCorr, KNNGraph graph) {
         this.matrix = matrix;
+        this.graph = graph;
         if (onlyUseCorr) {
             cutoff = 2;
         } else {
@@ -44,6 +58,10 @@ public class Correlator {
     }
 
     public Set<Integer> getOutlierIndices() {
+        if (graph != null) {
+            return getOutlierIndicesFromGraph();
+        }
+
         for (int k = 0; k < matrix.length; k++) {
             boolean unassigned = true;
             for (VectorGroup group : groups) {
@@ -67,4 +85,53 @@ public class Correlator {
 
         return outlierIndices;
     }
+
+    /**
+     * rows are linked when a kNN edge between them is correlated beyond the threshold;
+     * the groups are the connected components of those links
+     */
+    private Set<Integer> getOutlierIndicesFromGraph() {
+        int[] parent = new int[matrix.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j : graph.getNeighbors(i)) {
+                float corr = RobustCorrelationSimilarity.SINGLETON.distance(matrix[i], matrix[j]);
+                if (Math.abs(corr) > threshold) {
+                    union(parent, i, j);
+                }
+            }
+        }
+
+        int[] groupSize = new int[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            groupSize[find(parent, i)]++;
+        }
+
+        Set<Integer> outlierIndices = new HashSet<>();
+        for (int i = 0; i < matrix.length; i++) {
+            if (groupSize[find(parent, i)] < cutoff) {
+                outlierIndices.add(i);
+            }
+        }
+        return outlierIndices;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
 }
@@ -28,6 +28,7 @@ import javastraw.tools.MatrixTools;
 import javastraw.tools.ParallelizationTools;
 import mixer.MixerGlobals;
 import mixer.utils.common.ArrayTools;
+import mixer.utils.knn.KNNGraph;
 import mixer.utils.similaritymeasures.RobustEuclideanDistance;
 import mixer.utils.similaritymeasures.RobustManhattanDistance;
 import mixer.utils.similaritymeasures.SimilarityMetric;
@@ -46,10 +47,16 @@ public class OutlierCleaner {
     boolean useOnlyCorr;
     private final int ONE_MB = 1000000;
     int numInitialClusters = 100;
+    private final KNNGraph graph;
 
     public OutlierCleaner(float[][] matrix, boolean useOnlyCorr) {
+        this(matrix, useOnlyCorr, null);
+    }
+
+    public OutlierCleaner(float[][] matrix, boolean useOnlyCorr, KNNGraph graph) {
         this.matrix = matrix;
         this.useOnlyCorr = useOnlyCorr;
+        this.graph = graph;
     }
 
     public Set<Integer> getConsistentOutliers(int resolution, File outputDirectory) {
@@ -69,7 +76,7 @@ public class OutlierCleaner {
     }
 
     private Set<Integer> getCorrOutlierIndices(float[][] matrix, boolean onlyUseCorr) {
-        Correlator correlator = new Correlator(matrix, onlyUseCorr);
+        Correlator correlator = new Correlator(matrix, onlyUseCorr, graph);
         return correlator.getOutlierIndices();
     }
 
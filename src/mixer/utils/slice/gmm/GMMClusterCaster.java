@@ -25,23 +25,57 @@
 package mixer.utils.slice.gmm;
 
 import javastraw.reader.basics.Chromosome;
+import mixer.algos.Slice;
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.common.FloatMatrixTools;
 import mixer.utils.slice.matrices.Dimension;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GMMClusterCaster {
+    private static final int MAX_NUM_CLUSTERS = 8;
+    private static final int MIN_NUM_CLUSTERS = 4;
+    private static final int NUM_CANDIDATES = MAX_NUM_CLUSTERS - MIN_NUM_CLUSTERS + 1;
+
+    /**
+     * Every (chromosome, number of clusters) fit is one task on a single bounded pool; each chromosome
+     * keeps the candidate with the lowest BIC. Tasks are handed out chromosome by chromosome, so only
+     * the extractions of the chromosomes currently being fit are held in memory.
+     */
     public static float[][] cast(float[][] interMatrix, Chromosome[] chromosomes,
                                  Dimension dimensions, Dimension compressedDimensions) {
-        List<float[][]> output = new ArrayList<>();
-
+        ChromosomeFits[] fits = new ChromosomeFits[chromosomes.length];
         for (int i = 0; i < chromosomes.length; i++) {
-            System.out.println("chrom " + chromosomes[i].getName());
-            float[][] extraction = getDataJustExcludingChromosome(interMatrix, i, compressedDimensions);
-            output.add(runGMM(extraction));
+            fits[i] = new ChromosomeFits(chromosomes[i], i);
         }
 
+        int numTasks = chromosomes.length * NUM_CANDIDATES;
+        int numThreads = Math.max(1, Math.min(numTasks, ParallelizedMixerTools.getNumThreads()));
+        // each fit parallelizes internally as well, so the thread count is split between the tasks
+        int threadsPerFit = Math.max(1, ParallelizedMixerTools.getNumThreads() / numThreads);
+
+        AtomicInteger currTask = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(numThreads, () ->
+                ParallelizedMixerTools.runWithThreadBudget(threadsPerFit, () -> {
+                    int t = currTask.getAndIncrement();
+                    while (t < numTasks) {
+                        int z = MAX_NUM_CLUSTERS - t % NUM_CANDIDATES;
+                        fits[t / NUM_CANDIDATES].fitCandidate(interMatrix, compressedDimensions, z);
+                        t = currTask.getAndIncrement();
+                    }
+                }));
+
+        List<float[][]> output = new ArrayList<>();
+        for (ChromosomeFits fit : fits) {
+            if (fit.result != null) {
+                output.add(fit.result);
+            }
+        }
+        if (output.isEmpty()) {
+            return new float[interMatrix.length][0];
+        }
         return FloatMatrixTools.concatenateAll(output);
     }
 
@@ -54,21 +88,66 @@ public class GMMClusterCaster {
         return subMatrix;
     }
 
-    private static float[][] runGMM(float[][] extraction) {
-        for (int z = 8; z > 3; z--) {
+    /**
+     * candidate fits for one chromosome; the extraction is built by the first candidate to start
+     * and released once the last one has finished and the best model has been cast
+     */
+    private static class ChromosomeFits {
+        private final Chromosome chromosome;
+        private final int index;
+        private float[][] extraction = null;
+        private int numRemaining = NUM_CANDIDATES;
+        private GaussianMixtureModels bestModel = null;
+        private double bestBIC = Double.MAX_VALUE;
+        private float[][] result = null;
+
+        ChromosomeFits(Chromosome chromosome, int index) {
+            this.chromosome = chromosome;
+            this.index = index;
+        }
+
+        private synchronized float[][] getExtraction(float[][] interMatrix, Dimension compressedDimensions) {
+            if (extraction == null) {
+                System.out.println("chrom " + chromosome.getName());
+                extraction = getDataJustExcludingChromosome(interMatrix, index, compressedDimensions);
+            }
+            return extraction;
+        }
+
+        void fitCandidate(float[][] interMatrix, Dimension compressedDimensions, int z) {
+            float[][] data = getExtraction(interMatrix, compressedDimensions);
+            GaussianMixtureModels gmm = null;
+            double bic = Double.NaN;
             try {
-                GaussianMixtureModels gmm = new GaussianMixtureModels(extraction,
-                        z, 50, false);
+                gmm = new GaussianMixtureModels(data, z, 50, false,
+                        Slice.GMM_COVARIANCE_TYPE, Slice.GMM_NUM_FACTORS);
                 gmm.fit();
-                gmm.trimEmptyClusters();
-                return FloatMatrixTools.convert(gmm.nanPredict(extraction, true, true));
+                bic = gmm.getBIC();
+                System.out.println("chrom " + chromosome.getName() + " Z " + z + " BIC " + bic);
             } catch (Exception e) {
-                System.err.println("Z " + z + " - failed");
+                System.err.println("chrom " + chromosome.getName() + " Z " + z + " - failed");
                 System.err.println(e.getLocalizedMessage());
-                e.printStackTrace();
             }
+            finishCandidate(gmm, bic);
+        }
+
+        private synchronized void finishCandidate(GaussianMixtureModels gmm, double bic) {
+            if (gmm != null && !Double.isNaN(bic) && bic < bestBIC) {
+                bestBIC = bic;
+                bestModel = gmm;
+            }
+            numRemaining--;
+            if (numRemaining > 0) return;
+
+            if (bestModel == null) {
+                System.err.println("GMM failed for all cluster sizes on " + chromosome.getName()
+                        + "; its columns are left out");
+            } else {
+                bestModel.trimEmptyClusters();
+                result = FloatMatrixTools.convert(bestModel.nanPredict(extraction, true, true));
+            }
+            bestModel = null;
+            extraction = null;
         }
-        System.exit(73);
-        return null;
     }
 }
@@ -26,11 +26,15 @@ package mixer.utils.slice.gmm;
 
 import mixer.MixerGlobals;
 import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.common.ArrayTools;
 import mixer.utils.slice.cleaning.QuickClusters;
 import mixer.utils.slice.gmm.robust.RobustGMMCovTools;
 import mixer.utils.slice.gmm.robust.RobustGMMTools;
 import mixer.utils.slice.gmm.simple.SimpleGMMCovTools;
 import mixer.utils.slice.gmm.simple.SimpleGMMTools;
+import mixer.utils.slice.gmm.structured.StructuredCovariance;
+import mixer.utils.slice.gmm.structured.StructuredGMMCovTools;
+import mixer.utils.slice.gmm.structured.StructuredGMMTools;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import java.util.ArrayList;
@@ -51,20 +55,38 @@ public class GaussianMixtureModels {
     private boolean startingFromScratch = true;
     private double[][] probabilities;
     private RealMatrix[] covMatrices;
+    private final CovarianceType covarianceType;
+    private final int numFactors;
+    private StructuredCovariance[] structuredCovs;
+
+    public enum CovarianceType {FULL, DIAGONAL, SPHERICAL, FACTOR}
 
     public GaussianMixtureModels(float[][] data, int numClusters, int maxIters,
                                  List<List<Integer>> startingIndices, boolean useRobustGMM) {
+        this(data, numClusters, maxIters, startingIndices, useRobustGMM, CovarianceType.FULL, 0);
+    }
+
+    public GaussianMixtureModels(float[][] data, int numClusters, int maxIters,
+                                 List<List<Integer>> startingIndices, boolean useRobustGMM,
+                                 CovarianceType covarianceType, int numFactors) {
         this.data = data;
         this.numClusters = numClusters;
         this.maxIters = maxIters;
         this.startingIndices = startingIndices;
         this.useRobustGMM = useRobustGMM;
+        this.covarianceType = covarianceType;
+        this.numFactors = numFactors;
         if (startingIndices.size() != numClusters) {
             System.err.println("GMM Error: something weird about cluster sizes " + numClusters + " : " + startingIndices.size());
         }
     }
 
     public GaussianMixtureModels(float[][] extraction, int numClusters, int maxIters, boolean useRobustGMM) {
+        this(extraction, numClusters, maxIters, useRobustGMM, CovarianceType.FULL, 0);
+    }
+
+    public GaussianMixtureModels(float[][] extraction, int numClusters, int maxIters, boolean useRobustGMM,
+                                 CovarianceType covarianceType, int numFactors) {
         if (!useRobustGMM) {
             this.data = removeNans(extraction);
         } else {
@@ -75,6 +97,8 @@ public class GaussianMixtureModels {
         this.maxIters = maxIters;
         this.startingIndices = qc.getClusters();
         this.useRobustGMM = useRobustGMM;
+        this.covarianceType = covarianceType;
+        this.numFactors = numFactors;
     }
 
     public void fit() {
@@ -90,7 +114,10 @@ public class GaussianMixtureModels {
         for (int iter = 0; iter < maxIters; iter++) {
             System.out.println("GMM Iteration " + iter);
             double[][] probClusterForRow;
-            if (useRobustGMM) {
+            if (covarianceType != CovarianceType.FULL) {
+                probClusterForRow = StructuredGMMTools.parGetProbabilityOfClusterForRow(numClusters, data,
+                        datasetFractionForCluster, meanVectors, structuredCovs);
+            } else if (useRobustGMM) {
                 probClusterForRow = RobustGMMTools.parGetProbabilityOfClusterForRow(numClusters, data,
                         datasetFractionForCluster, meanVectors, covMatrices);
             } else {
@@ -102,7 +129,10 @@ public class GaussianMixtureModels {
     }
 
     private void updateMeanCovsPriors(double[][] probClusterForRow) {
-        if (useRobustGMM) {
+        if (covarianceType != CovarianceType.FULL) {
+            meanVectors = RobustGMMTools.parGetWeightedMean(numClusters, data, probClusterForRow);
+            structuredCovs = getStructuredCovariances(probClusterForRow);
+        } else if (useRobustGMM) {
             meanVectors = RobustGMMTools.parGetWeightedMean(numClusters, data, probClusterForRow);
             covMatrices = RobustGMMCovTools.parGetNewWeightedFeatureCovarianceMatrix(numClusters, data, probClusterForRow, meanVectors);
         } else {
@@ -112,6 +142,19 @@ public class GaussianMixtureModels {
         datasetFractionForCluster = SimpleGMMTools.updateDatasetFraction(probClusterForRow, data.length);
     }
 
+    private StructuredCovariance[] getStructuredCovariances(double[][] probClusterForRow) {
+        switch (covarianceType) {
+            case SPHERICAL:
+                return StructuredGMMCovTools.parGetNewSphericalCovariances(numClusters, data, probClusterForRow, meanVectors);
+            case FACTOR:
+                return StructuredGMMCovTools.parGetNewFactorCovariances(numClusters, data, probClusterForRow,
+                        meanVectors, structuredCovs, numFactors, 0L);
+            case DIAGONAL:
+            default:
+                return StructuredGMMCovTools.parGetNewDiagonalCovariances(numClusters, data, probClusterForRow, meanVectors);
+        }
+    }
+
     private static float[][] removeNans(float[][] matrix) {
         List<Integer> indices = new ArrayList<>();
         for (int i = 0; i < matrix.length; i++) {
@@ -176,6 +219,77 @@ public class GaussianMixtureModels {
         return assignments;
     }
 
+    /**
+     * Bayesian information criterion for the fitted model; lower is better
+     */
+    public double getBIC() {
+        return getNumParameters() * Math.log(data.length) - 2 * parGetTotalLogLikelihood();
+    }
+
+    private long getNumParameters() {
+        long d = data[0].length;
+        long numParams = numClusters * d + numClusters - 1;
+        for (int k = 0; k < numClusters; k++) {
+            if (covarianceType != CovarianceType.FULL) {
+                numParams += structuredCovs[k].getNumParameters();
+            } else {
+                numParams += getNumFullCovarianceParameters(d, k);
+            }
+        }
+        return numParams;
+    }
+
+    /**
+     * A covariance estimated from m weighted rows has rank at most m - 1, so it is counted as a
+     * rank-r matrix (r*d - r*(r-1)/2 free values) rather than always d*(d+1)/2, which would outweigh
+     * any likelihood gain once d is large relative to the cluster size.
+     */
+    private long getNumFullCovarianceParameters(long d, int k) {
+        long clusterSize = Math.round(datasetFractionForCluster[k] * data.length);
+        long r = Math.max(1, Math.min(d, clusterSize - 1));
+        return r * d - (r * (r - 1)) / 2;
+    }
+
+    private double parGetTotalLogLikelihood() {
+        double[] total = new double[1];
+        AtomicInteger currentIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            double localTotal = 0;
+            double[] logLikelihood = new double[numClusters];
+            int i = currentIndex.getAndIncrement();
+            while (i < data.length) {
+                for (int k = 0; k < numClusters; k++) {
+                    logLikelihood[k] = Math.log(datasetFractionForCluster[k]) + getLogLikelihood(data[i], k);
+                }
+                double maxVal = ArrayTools.max(logLikelihood);
+                double sum = 0;
+                for (int k = 0; k < numClusters; k++) {
+                    if (!Double.isNaN(logLikelihood[k])) {
+                        sum += Math.exp(logLikelihood[k] - maxVal);
+                    }
+                }
+                if (sum > 0) {
+                    localTotal += maxVal + Math.log(sum);
+                }
+                i = currentIndex.getAndIncrement();
+            }
+            synchronized (total) {
+                total[0] += localTotal;
+            }
+        });
+        return total[0];
+    }
+
+    private double getLogLikelihood(float[] row, int k) {
+        if (covarianceType != CovarianceType.FULL) {
+            return structuredCovs[k].logLikelihood(row, meanVectors[k]);
+        } else if (useRobustGMM) {
+            return RobustGMMTools.multivariateNormal(row, meanVectors[k], covMatrices[k]);
+        } else {
+            return SimpleGMMTools.multivariateNormal(row, meanVectors[k], covs[k]);
+        }
+    }
+
     public void trimEmptyClusters() {
         System.out.println("Dataset Fraction");
         System.out.println(Arrays.toString(datasetFractionForCluster));
@@ -198,11 +312,7 @@ public class GaussianMixtureModels {
                 if (!isInvalidRow) {
                     double[] logLikelihood = new double[numClusters];
                     for (int k = 0; k < numClusters; k++) {
-                        if (useRobustGMM) {
-                            logLikelihood[k] = RobustGMMTools.multivariateNormal(data[i], meanVectors[k], covMatrices[k]);
-                        } else {
-                            logLikelihood[k] = SimpleGMMTools.multivariateNormal(data[i], meanVectors[k], covs[k]);
-                        }
+                        logLikelihood[k] = getLogLikelihood(data[i], k);
                     }
                     probabilities[i] = SimpleGMMTools.convertLogLikelihoodToProb(logLikelihood);
                 }
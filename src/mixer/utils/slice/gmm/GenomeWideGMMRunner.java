@@ -26,6 +26,7 @@ package mixer.utils.slice.gmm;
 
 import javastraw.feature1D.GenomeWide1DList;
 import javastraw.reader.basics.ChromosomeHandler;
+import mixer.algos.Slice;
 import mixer.utils.slice.matrices.CompositeGenomeWideMatrix;
 import mixer.utils.slice.structures.SubcompartmentInterval;
 
@@ -47,7 +48,8 @@ public class GenomeWideGMMRunner {
                        List<List<Integer>> startingIndices, boolean useRobustGMM) {
         if (data.length > 0 && data[0].length > 0) {
             GaussianMixtureModels gmm = new GaussianMixtureModels(data,
-                    numClusters, 100, startingIndices, useRobustGMM);
+                    numClusters, 100, startingIndices, useRobustGMM,
+                    Slice.GMM_COVARIANCE_TYPE, Slice.GMM_NUM_FACTORS);
             try {
                 gmm.fit();
                 int[] result = gmm.predict();
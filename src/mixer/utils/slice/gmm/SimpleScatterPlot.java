@@ -24,10 +24,10 @@
 
 package mixer.utils.slice.gmm;
 
+import mixer.utils.common.TileRenderer;
 import mixer.utils.slice.structures.SubcompartmentColors;
 import mixer.utils.umap.UmapProjection;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -81,36 +81,17 @@ public class SimpleScatterPlot {
     }
 
     private void plotIndividualMap(int[] ids, String absPath) {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = (Graphics2D) image.getGraphics();
-        colorBackground(g);
-
+        float[] xs = new float[points.length];
+        float[] ys = new float[points.length];
+        int[] colors = new int[points.length];
         for (int i = 0; i < points.length; i++) {
-            drawCircle(g, points[i], ids[i]);
-        }
-
-        save(image, absPath);
-    }
-
-    private void colorBackground(Graphics2D g) {
-        g.setColor(BACKGROUND_COLOR);
-        g.fillRect(0, 0, width, height);
-    }
-
-    private void save(BufferedImage image, String absPath) {
-        File file = new File(absPath);
-        try {
-            ImageIO.write(image, "png", file);
-        } catch (Exception e) {
-            e.printStackTrace();
+            xs[i] = (points[i][0] - minX) * width / widthX;
+            ys[i] = (points[i][1] - minY) * height / heightY;
+            colors[i] = SubcompartmentColors.getColorWithAlpha(ids[i] + 1, 128).getRGB();
         }
-    }
 
-    private void drawCircle(Graphics g, float[] point, int id) {
-        Color color = SubcompartmentColors.getColorWithAlpha(id + 1, 128);
-        g.setColor(color);
-        int newX = (int) ((point[0] - circleOffset - minX) * width / widthX);
-        int newY = (int) ((point[1] - circleOffset - minY) * height / heightY);
-        g.fillOval(newX, newY, circleWidth, circleWidth);
+        int[] pixels = TileRenderer.renderCircles(width, height, BACKGROUND_COLOR.getRGB(),
+                xs, ys, colors, circleWidth);
+        TileRenderer.savePNG(new File(absPath), pixels, width, height, BufferedImage.TYPE_INT_ARGB);
     }
-}
\ No newline at end of file
+}
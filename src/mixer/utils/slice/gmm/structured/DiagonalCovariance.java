@@ -0,0 +1,61 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.slice.gmm.structured;
+
+public class DiagonalCovariance extends StructuredCovariance {
+    private final double[] inverseVariance;
+    private final double[] logVariance;
+
+    public DiagonalCovariance(double[] variance) {
+        inverseVariance = new double[variance.length];
+        logVariance = new double[variance.length];
+        for (int j = 0; j < variance.length; j++) {
+            inverseVariance[j] = 1.0 / variance[j];
+            logVariance[j] = Math.log(variance[j]);
+        }
+    }
+
+    @Override
+    public double logLikelihood(float[] x, float[] meanVector) {
+        int n = 0;
+        double logDet = 0;
+        double exponent = 0;
+        for (int j = 0; j < x.length; j++) {
+            double diff = x[j] - meanVector[j];
+            if (!Double.isNaN(diff)) {
+                exponent += diff * diff * inverseVariance[j];
+                logDet += logVariance[j];
+                n++;
+            }
+        }
+        if (n < 1) return Double.NaN;
+        return -0.5 * (n * LOG_2_PI + logDet + exponent);
+    }
+
+    @Override
+    public long getNumParameters() {
+        return inverseVariance.length;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.slice.gmm.structured;
+
+import mixer.utils.slice.gmm.CovarianceMatrixInverseAndDeterminant;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+
+/**
+ * Factor analyzer covariance: W * W^T + Psi, with W a d x q loadings matrix and Psi diagonal.
+ * The likelihood uses the Woodbury identity so only q x q systems are ever solved.
+ */
+public class FactorCovariance extends StructuredCovariance {
+    private final double[][] loadings;
+    private final double[] psi;
+    private final double[] inversePsi;
+    private final double[] logPsi;
+    private final CovarianceMatrixInverseAndDeterminant innerMatrix;
+
+    public FactorCovariance(double[][] loadings, double[] psi) {
+        this.loadings = loadings;
+        this.psi = psi;
+        inversePsi = new double[psi.length];
+        logPsi = new double[psi.length];
+        for (int j = 0; j < psi.length; j++) {
+            inversePsi[j] = 1.0 / psi[j];
+            logPsi[j] = Math.log(psi[j]);
+        }
+        innerMatrix = getInnerMatrix(null);
+    }
+
+    public double[][] getLoadings() {
+        return loadings;
+    }
+
+    public double[] getPsi() {
+        return psi;
+    }
+
+    public double[] getInversePsi() {
+        return inversePsi;
+    }
+
+    public int getNumFactors() {
+        return loadings[0].length;
+    }
+
+    /**
+     * @return (I + W^T Psi^-1 W)^-1, the posterior covariance of the latent factors
+     */
+    public double[][] getInnerInverse() {
+        return innerMatrix.inverse.getData();
+    }
+
+    @Override
+    public double logLikelihood(float[] x, float[] meanVector) {
+        int q = getNumFactors();
+        boolean[] isValid = new boolean[x.length];
+        boolean hasNans = false;
+        int n = 0;
+        double logDetPsi = 0;
+        double exponent = 0;
+        double[] projection = new double[q];
+
+        for (int j = 0; j < x.length; j++) {
+            double diff = x[j] - meanVector[j];
+            if (Double.isNaN(diff)) {
+                hasNans = true;
+            } else {
+                isValid[j] = true;
+                n++;
+                double scaled = diff * inversePsi[j];
+                exponent += diff * scaled;
+                logDetPsi += logPsi[j];
+                for (int f = 0; f < q; f++) {
+                    projection[f] += loadings[j][f] * scaled;
+                }
+            }
+        }
+        if (n < 1) return Double.NaN;
+
+        CovarianceMatrixInverseAndDeterminant inner = innerMatrix;
+        if (hasNans) {
+            inner = getInnerMatrix(isValid);
+        }
+
+        double[][] innerInverse = inner.inverse.getData();
+        for (int f = 0; f < q; f++) {
+            double accum = 0;
+            for (int g = 0; g < q; g++) {
+                accum += innerInverse[f][g] * projection[g];
+            }
+            exponent -= projection[f] * accum;
+        }
+
+        return -0.5 * (n * LOG_2_PI + Math.log(inner.determinant) + logDetPsi + exponent);
+    }
+
+    private CovarianceMatrixInverseAndDeterminant getInnerMatrix(boolean[] isValid) {
+        int q = getNumFactors();
+        double[][] inner = new double[q][q];
+        for (int j = 0; j < loadings.length; j++) {
+            if (isValid == null || isValid[j]) {
+                for (int f = 0; f < q; f++) {
+                    double scaled = loadings[j][f] * inversePsi[j];
+                    for (int g = f; g < q; g++) {
+                        inner[f][g] += scaled * loadings[j][g];
+                    }
+                }
+            }
+        }
+        for (int f = 0; f < q; f++) {
+            inner[f][f] += 1;
+            for (int g = f + 1; g < q; g++) {
+                inner[g][f] = inner[f][g];
+            }
+        }
+        return new CovarianceMatrixInverseAndDeterminant(new Array2DRowRealMatrix(inner));
+    }
+
+    @Override
+    public long getNumParameters() {
+        long d = psi.length;
+        long q = getNumFactors();
+        return d * q + d - (q * (q - 1)) / 2;
+    }
+}
@@ -1,7 +1,7 @@
 /*
  * The MIT License (MIT)
  *
- * Copyright (c) 2011-2021 Rice University, Baylor College of Medicine, Aiden Lab
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -22,44 +22,34 @@
  *  THE SOFTWARE.
  */
 
-package mixer.utils.network;
+package mixer.utils.slice.gmm.structured;
 
-import java.util.*;
+public class SphericalCovariance extends StructuredCovariance {
+    private final double inverseVariance;
+    private final double logVariance;
 
-public class LoopAnchor {
-    private final List<Integer> connectedLoops = new ArrayList<>();
-    private final int buffer;
-    private long position;
-
-    public LoopAnchor(long midBin, int id, int buffer) {
-        connectedLoops.add(id);
-        position = midBin;
-        this.buffer = buffer;
-    }
-
-
-    public boolean overlaps(long midBin) {
-        return Math.abs(midBin - position) < buffer;
-    }
-
-    public void add(long midBin, int id) {
-        long currentTotal = position * connectedLoops.size();
-        currentTotal += midBin;
-        connectedLoops.add(id);
-        position = currentTotal / connectedLoops.size();
-    }
-
-    public int size() {
-        return connectedLoops.size();
+    public SphericalCovariance(double variance) {
+        inverseVariance = 1.0 / variance;
+        logVariance = Math.log(variance);
     }
 
-    public void populateAdjacencyMatrix(Map<Integer, Set<Integer>> adjacencyMatrix) {
-        for (int i : connectedLoops) {
-            if (adjacencyMatrix.containsKey(i)) {
-                adjacencyMatrix.get(i).addAll(connectedLoops);
-            } else {
-                adjacencyMatrix.put(i, new HashSet<>(connectedLoops));
+    @Override
+    public double logLikelihood(float[] x, float[] meanVector) {
+        int n = 0;
+        double sumSquares = 0;
+        for (int j = 0; j < x.length; j++) {
+            double diff = x[j] - meanVector[j];
+            if (!Double.isNaN(diff)) {
+                sumSquares += diff * diff;
+                n++;
             }
         }
+        if (n < 1) return Double.NaN;
+        return -0.5 * (n * (LOG_2_PI + logVariance) + sumSquares * inverseVariance);
+    }
+
+    @Override
+    public long getNumParameters() {
+        return 1;
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.slice.gmm.structured;
+
+/**
+ * A covariance matrix stored in a compressed form (diagonal, spherical, or low-rank plus diagonal)
+ * so that the full d x d matrix never needs to be built or inverted
+ */
+public abstract class StructuredCovariance {
+
+    protected static final double LOG_2_PI = Math.log(2 * Math.PI);
+
+    /**
+     * NaN entries in x (or the mean) are marginalized out
+     *
+     * @return log of the multivariate normal density at x, or NaN if no entries are valid
+     */
+    public abstract double logLikelihood(float[] x, float[] meanVector);
+
+    /**
+     * @return number of free parameters in the covariance (used for model selection)
+     */
+    public abstract long getNumParameters();
+}
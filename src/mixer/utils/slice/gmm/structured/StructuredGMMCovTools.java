@@ -0,0 +1,265 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.slice.gmm.structured;
+
+import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.slice.gmm.CovarianceMatrixInverseAndDeterminant;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StructuredGMMCovTools {
+
+    private static final double DELTA = 1e-5;
+
+    public static StructuredCovariance[] parGetNewDiagonalCovariances(int numClusters, float[][] data,
+                                                                      double[][] probClusterForRow,
+                                                                      float[][] meanVectors) {
+        StructuredCovariance[] covs = new StructuredCovariance[numClusters];
+        for (int k = 0; k < numClusters; k++) {
+            covs[k] = new DiagonalCovariance(parGetWeightedVariances(data, probClusterForRow, k, meanVectors[k]));
+        }
+        return covs;
+    }
+
+    public static StructuredCovariance[] parGetNewSphericalCovariances(int numClusters, float[][] data,
+                                                                       double[][] probClusterForRow,
+                                                                       float[][] meanVectors) {
+        StructuredCovariance[] covs = new StructuredCovariance[numClusters];
+        for (int k = 0; k < numClusters; k++) {
+            double[] variances = parGetWeightedVariances(data, probClusterForRow, k, meanVectors[k]);
+            double total = 0;
+            for (double variance : variances) {
+                total += variance;
+            }
+            covs[k] = new SphericalCovariance(total / variances.length);
+        }
+        return covs;
+    }
+
+    /**
+     * one EM step of the factor analyzer per cluster, warm-started from the previous GMM iteration;
+     * all sufficient statistics are d x q or q x q, so the d x d covariance is never formed
+     */
+    public static StructuredCovariance[] parGetNewFactorCovariances(int numClusters, float[][] data,
+                                                                    double[][] probClusterForRow,
+                                                                    float[][] meanVectors,
+                                                                    StructuredCovariance[] previousCovs,
+                                                                    int numFactors, long seed) {
+        Random generator = new Random(seed);
+        StructuredCovariance[] covs = new StructuredCovariance[numClusters];
+        for (int k = 0; k < numClusters; k++) {
+            double[] diagonal = parGetWeightedVariances(data, probClusterForRow, k, meanVectors[k]);
+            FactorCovariance previous;
+            if (previousCovs != null && previousCovs[k] instanceof FactorCovariance) {
+                previous = (FactorCovariance) previousCovs[k];
+            } else {
+                previous = new FactorCovariance(getInitialLoadings(diagonal, numFactors, generator), diagonal);
+            }
+            covs[k] = parGetFactorCovariance(data, probClusterForRow, k, meanVectors[k], diagonal, previous);
+        }
+        return covs;
+    }
+
+    public static double[] parGetWeightedVariances(float[][] data, double[][] probClusterForRow,
+                                                   int clusterID, float[] meanVector) {
+        int dimension = data[0].length;
+        double[] accum = new double[dimension];
+        double[] weights = new double[dimension];
+
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            double[] localAccum = new double[dimension];
+            double[] localWeights = new double[dimension];
+            int i = currRowIndex.getAndIncrement();
+            while (i < data.length) {
+                double w = probClusterForRow[i][clusterID];
+                if (w > 0) {
+                    for (int j = 0; j < dimension; j++) {
+                        double diff = data[i][j] - meanVector[j];
+                        if (!Double.isNaN(diff)) {
+                            localAccum[j] += w * diff * diff;
+                            localWeights[j] += w;
+                        }
+                    }
+                }
+                i = currRowIndex.getAndIncrement();
+            }
+            synchronized (accum) {
+                for (int j = 0; j < dimension; j++) {
+                    accum[j] += localAccum[j];
+                    weights[j] += localWeights[j];
+                }
+            }
+        });
+
+        double[] variances = new double[dimension];
+        for (int j = 0; j < dimension; j++) {
+            if (weights[j] > 0) {
+                variances[j] = accum[j] / weights[j] + DELTA;
+            } else {
+                variances[j] = 1; // no valid entries for this cluster; leave dimension uninformative
+            }
+        }
+        return variances;
+    }
+
+    private static FactorCovariance parGetFactorCovariance(float[][] data, double[][] probClusterForRow,
+                                                           int clusterID, float[] meanVector, double[] diagonal,
+                                                           FactorCovariance previous) {
+        int dimension = data[0].length;
+        int q = previous.getNumFactors();
+        double[][] beta = getBeta(previous);
+
+        double[][] sBetaT = new double[dimension][q];
+        double[][] zzT = new double[q][q];
+        double[] totalWeight = new double[1];
+
+        AtomicInteger currRowIndex = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(() -> {
+            double[][] localSBetaT = new double[dimension][q];
+            double[][] localZZT = new double[q][q];
+            double localWeight = 0;
+            double[] diff = new double[dimension];
+            double[] z = new double[q];
+
+            int i = currRowIndex.getAndIncrement();
+            while (i < data.length) {
+                double w = probClusterForRow[i][clusterID];
+                if (w > 0) {
+                    for (int j = 0; j < dimension; j++) {
+                        diff[j] = data[i][j] - meanVector[j];
+                        if (Double.isNaN(diff[j])) {
+                            diff[j] = 0;
+                        }
+                    }
+                    for (int f = 0; f < q; f++) {
+                        double accum = 0;
+                        for (int j = 0; j < dimension; j++) {
+                            accum += beta[f][j] * diff[j];
+                        }
+                        z[f] = accum;
+                    }
+                    for (int j = 0; j < dimension; j++) {
+                        double wd = w * diff[j];
+                        for (int f = 0; f < q; f++) {
+                            localSBetaT[j][f] += wd * z[f];
+                        }
+                    }
+                    for (int f = 0; f < q; f++) {
+                        for (int g = f; g < q; g++) {
+                            localZZT[f][g] += w * z[f] * z[g];
+                        }
+                    }
+                    localWeight += w;
+                }
+                i = currRowIndex.getAndIncrement();
+            }
+
+            synchronized (totalWeight) {
+                for (int j = 0; j < dimension; j++) {
+                    for (int f = 0; f < q; f++) {
+                        sBetaT[j][f] += localSBetaT[j][f];
+                    }
+                }
+                for (int f = 0; f < q; f++) {
+                    for (int g = f; g < q; g++) {
+                        zzT[f][g] += localZZT[f][g];
+                    }
+                }
+                totalWeight[0] += localWeight;
+            }
+        });
+
+        for (int j = 0; j < dimension; j++) {
+            for (int f = 0; f < q; f++) {
+                sBetaT[j][f] /= totalWeight[0];
+            }
+        }
+
+        // E[zz^T] = (I + W^T Psi^-1 W)^-1 + beta * S * beta^T
+        double[][] innerInverse = previous.getInnerInverse();
+        double[][] expectedZZT = new double[q][q];
+        for (int f = 0; f < q; f++) {
+            for (int g = f; g < q; g++) {
+                expectedZZT[f][g] = innerInverse[f][g] + zzT[f][g] / totalWeight[0];
+                expectedZZT[g][f] = expectedZZT[f][g];
+            }
+        }
+        double[][] inverseZZT = new CovarianceMatrixInverseAndDeterminant(
+                new Array2DRowRealMatrix(expectedZZT)).inverse.getData();
+
+        double[][] loadings = new double[dimension][q];
+        double[] psi = new double[dimension];
+        for (int j = 0; j < dimension; j++) {
+            double explained = 0;
+            for (int f = 0; f < q; f++) {
+                double accum = 0;
+                for (int g = 0; g < q; g++) {
+                    accum += sBetaT[j][g] * inverseZZT[g][f];
+                }
+                loadings[j][f] = accum;
+                explained += accum * sBetaT[j][f];
+            }
+            psi[j] = Math.max(diagonal[j] - explained, 0) + DELTA;
+        }
+
+        return new FactorCovariance(loadings, psi);
+    }
+
+    /**
+     * beta = (I + W^T Psi^-1 W)^-1 W^T Psi^-1, which maps a centered row to its expected latent factors
+     */
+    private static double[][] getBeta(FactorCovariance cov) {
+        double[][] loadings = cov.getLoadings();
+        double[] inversePsi = cov.getInversePsi();
+        double[][] innerInverse = cov.getInnerInverse();
+        int q = cov.getNumFactors();
+
+        double[][] beta = new double[q][loadings.length];
+        for (int j = 0; j < loadings.length; j++) {
+            for (int f = 0; f < q; f++) {
+                double accum = 0;
+                for (int g = 0; g < q; g++) {
+                    accum += innerInverse[f][g] * loadings[j][g];
+                }
+                beta[f][j] = accum * inversePsi[j];
+            }
+        }
+        return beta;
+    }
+
+    private static double[][] getInitialLoadings(double[] diagonal, int numFactors, Random generator) {
+        double[][] loadings = new double[diagonal.length][numFactors];
+        for (int j = 0; j < diagonal.length; j++) {
+            double scale = 0.1 * Math.sqrt(diagonal[j]);
+            for (int f = 0; f < numFactors; f++) {
+                loadings[j][f] = scale * generator.nextGaussian();
+            }
+        }
+        return loadings;
+    }
+}
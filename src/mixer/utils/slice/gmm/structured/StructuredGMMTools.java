@@ -1,7 +1,7 @@
 /*
  * The MIT License (MIT)
  *
- * Copyright (c) 2011-2021 Rice University, Baylor College of Medicine, Aiden Lab
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -22,31 +22,33 @@
  *  THE SOFTWARE.
  */
 
-package mixer.utils.slice.gmm.robust;
+package mixer.utils.slice.gmm.structured;
 
 import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.slice.gmm.simple.SimpleGMMTools;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
-public class MatrixMult {
+public class StructuredGMMTools {
 
-    public static float[][] multiply(float[][] a, float[][] b) {
-        int numARows = a.length;
-        int numACols = a[0].length;
-        int numBCols = b[0].length;
+    public static double[][] parGetProbabilityOfClusterForRow(int numClusters, float[][] data, double[] pi,
+                                                              float[][] meanVectors, StructuredCovariance[] covs) {
+        double[][] r = new double[data.length][numClusters];
+        double[] logpi = SimpleGMMTools.logPriors100(pi);
 
-        float[][] result = new float[numARows][numBCols];
-        AtomicInteger currRowIndex = new AtomicInteger(0);
+        AtomicInteger currIndex = new AtomicInteger(0);
         ParallelizedMixerTools.launchParallelizedCode(() -> {
-            int i = currRowIndex.getAndIncrement();
-            while (i < numARows) {
-                for (int j = 0; j < numBCols; j++) {
-                    for (int k = 0; k < numACols; k++) {
-                        result[i][j] += a[i][k] * b[k][j];
-                    }
+            int n = currIndex.getAndIncrement();
+            while (n < data.length) {
+                double[] logLikelihood = new double[numClusters];
+                for (int k = 0; k < numClusters; k++) {
+                    logLikelihood[k] = logpi[k] + covs[k].logLikelihood(data[n], meanVectors[k]);
                 }
+                r[n] = SimpleGMMTools.convertLogLikelihoodToProb(logLikelihood);
+                n = currIndex.getAndIncrement();
             }
         });
-        return result;
+
+        return r;
     }
 }
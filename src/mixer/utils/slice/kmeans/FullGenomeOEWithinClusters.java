@@ -29,6 +29,7 @@ import javastraw.reader.Dataset;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.type.NormalizationType;
 import mixer.algos.Slice;
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.slice.CorrMatrixClusterer;
 import mixer.utils.slice.EncodeExportUtils;
 import mixer.utils.slice.cleaning.BadIndexFinder;
@@ -40,20 +41,29 @@ import mixer.utils.umap.UmapProjection;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class FullGenomeOEWithinClusters {
     public static int startingClusterSizeK = 2;
     public static int numClusterSizeKValsUsed = 10;
     public static int numAttemptsForKMeans = 3;
+    // 0 = a quarter of the configured threads; the k-means sweep runs alongside and sizes its own pool
+    public static int numThreadsForUMAP = 0;
     private final File outputDirectory;
     private final ChromosomeHandler chromosomeHandler;
     private final CompositeGenomeWideMatrix sliceMatrix;
     private final int maxIters = 200;
     private final Random generator = new Random(2352);
-    private final UmapProjection projection;
+    private final Future<UmapProjection> projection;
+    // cluster plots wait until the whole sweep is done, so the sweep never blocks on the projection
+    private final Map<String, List<List<Integer>>> deferredPlots = new LinkedHashMap<>();
 
     public FullGenomeOEWithinClusters(List<Dataset> datasets, ChromosomeHandler chromosomeHandler, int resolution,
                                       List<NormalizationType[]> normalizationTypes,
@@ -80,13 +90,26 @@ public class FullGenomeOEWithinClusters {
         sliceMatrix.cleanUpMatricesBySparsity();
 
         if (Slice.USE_INTER_CORR_CLUSTERING || Slice.PROJECT_TO_UMAP) {
-            projection = new UmapProjection(sliceMatrix, true);
-            projection.runUmapAndColorByChromosome(outputDirectory);
+            // clustering never needs the embedding, so it is only waited on when plotting
+            final CompositeGenomeWideMatrix matrix = sliceMatrix;
+            final int umapThreads = getNumThreadsForUMAP();
+            ExecutorService umapExecutor = Executors.newSingleThreadExecutor();
+            projection = umapExecutor.submit(() -> {
+                UmapProjection umapProjection = new UmapProjection(matrix, true, umapThreads);
+                umapProjection.runUmapAndColorByChromosome(outputDirectory);
+                return umapProjection;
+            });
+            umapExecutor.shutdown();
         } else {
             projection = null;
         }
     }
 
+    private static int getNumThreadsForUMAP() {
+        if (numThreadsForUMAP > 0) return numThreadsForUMAP;
+        return Math.max(1, ParallelizedMixerTools.getNumThreads() / 4);
+    }
+
     public void extractFinalGWSubcompartments(String prefix) {
         System.out.println("Genomewide clustering");
         if (Slice.USE_KMEANS) {
@@ -97,6 +120,8 @@ public class FullGenomeOEWithinClusters {
             sliceMatrix.inPlaceScaleSqrtWeightCol(); // due to l1 issue
             processClustering(prefix, true);
         }
+
+        plotDeferredProjections();
     }
 
     private void processClustering(String prefix, boolean useKMedians) {
@@ -139,8 +164,18 @@ public class FullGenomeOEWithinClusters {
         File outBedFile = new File(outputDirectory, prefix + "_" + k + "_" + kstem + "_clusters.bed");
         gwList.simpleExport(outBedFile);
         if (projection != null) {
-            projection.plotProjection(outputDirectory, kmeansIndicesMap.get(z), prefix + "_" + k + "_" + kstem + "_clusters");
+            deferredPlots.put(prefix + "_" + k + "_" + kstem + "_clusters", kmeansIndicesMap.get(z));
+        }
+    }
+
+    private void plotDeferredProjections() {
+        UmapProjection umapProjection = getProjection();
+        if (umapProjection != null) {
+            for (Map.Entry<String, List<List<Integer>>> entry : deferredPlots.entrySet()) {
+                umapProjection.plotProjection(outputDirectory, entry.getValue(), entry.getKey());
+            }
         }
+        deferredPlots.clear();
     }
 
     public void runRepeatedKMeansClusteringLoop(int attemptsForKMeans, GenomeWideKmeansRunner kmeansRunner,
@@ -169,6 +204,17 @@ public class FullGenomeOEWithinClusters {
         }
     }
 
+    private UmapProjection getProjection() {
+        if (projection == null) return null;
+        try {
+            return projection.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("UMAP projection failed; skipping plots");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     public File getOutputDirectory() {
         return outputDirectory;
     }
@@ -34,15 +34,23 @@ import mixer.MixerGlobals;
 import mixer.algos.Slice;
 import mixer.utils.common.ArrayTools;
 import mixer.utils.common.FloatMatrixTools;
+import mixer.utils.common.RandomizedPCA;
 import mixer.utils.common.ZScoreTools;
 import mixer.utils.drive.DriveMatrix;
+import mixer.utils.knn.KNNGraph;
+import mixer.utils.knn.NNDescent;
 import mixer.utils.slice.cleaning.BadIndexFinder;
+import mixer.utils.slice.cleaning.DistanceOutlierFinder;
+import mixer.utils.slice.cleaning.MatrixImputer;
 import mixer.utils.slice.cleaning.SimilarityMatrixTools;
 import mixer.utils.slice.cleaning.SliceMatrixCleaner;
+import mixer.utils.slice.cleaning.utils.MatrixRowCleaner;
+import mixer.utils.slice.cleaning.utils.OutlierCleaner;
 import mixer.utils.slice.structures.SliceUtils;
 import mixer.utils.slice.structures.SubcompartmentInterval;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 public abstract class CompositeGenomeWideMatrix extends DriveMatrix {
@@ -55,6 +63,8 @@ public abstract class CompositeGenomeWideMatrix extends DriveMatrix {
     private MatrixAndWeight gwCleanMatrix, projectedData = null;
     protected final BadIndexFinder badIndexLocations;
     protected final int maxClusterSizeExpected;
+    private static final int NUM_NEIGHBORS = 30;
+    private KNNGraph knnGraph = null;
 
     public CompositeGenomeWideMatrix(ChromosomeHandler chromosomeHandler, Dataset ds,
                                      NormalizationType[] norms,
@@ -87,7 +97,6 @@ public abstract class CompositeGenomeWideMatrix extends DriveMatrix {
     abstract MatrixAndWeight makeCleanScaledInterMatrix(Dataset ds, NormalizationType interNorm);
 
     public void cleanUpMatricesBySparsity() {
-
         SliceMatrixCleaner matrixCleanupReduction = new SliceMatrixCleaner(gwCleanMatrix.matrix,
                 generator.nextLong(), outputDirectory, resolution);
         gwCleanMatrix = matrixCleanupReduction.getCleanFilteredZscoredMatrix(rowIndexToIntervalMap,
@@ -95,12 +104,23 @@ public abstract class CompositeGenomeWideMatrix extends DriveMatrix {
 
         inPlaceScaleSqrtWeightCol();
 
+        buildKNNGraph();
+        if (Slice.USE_KNN_CLEANING) {
+            removeKNNOutliers();
+            gwCleanMatrix = new MatrixAndWeight(MatrixImputer.getImputedMatrix(gwCleanMatrix.matrix, knnGraph),
+                    gwCleanMatrix.weights);
+        }
+
         File file0 = new File(outputDirectory, "genome_indices.npy");
         MatrixTools.saveMatrixTextNumpy(file0.getAbsolutePath(), getGenomeIndices());
 
         File file1 = new File(outputDirectory, "slice_matrix.npy");
         MatrixTools.saveMatrixTextNumpy(file1.getAbsolutePath(), gwCleanMatrix.matrix);
 
+        if (Slice.PCA_VARIANCE_PERCENT > 0) {
+            projectOntoPrincipalComponents();
+        }
+
         if (Slice.USE_INTER_CORR_CLUSTERING || Slice.PROJECT_TO_UMAP) {
             projectedData = new MatrixAndWeight(SimilarityMatrixTools.getCosinePearsonCorrMatrix(gwCleanMatrix.matrix,
                     50, generator.nextLong()), gwCleanMatrix.weights);
@@ -111,6 +131,59 @@ public abstract class CompositeGenomeWideMatrix extends DriveMatrix {
         }
     }
 
+    /**
+     * builds the kNN graph over the rows of the slice matrix once per run and saves it alongside
+     * slice_matrix.npy; later steps only transform columns, so the graph stays valid for them
+     */
+    private void buildKNNGraph() {
+        knnGraph = NNDescent.build(gwCleanMatrix.matrix, NUM_NEIGHBORS, generator.nextLong());
+        try {
+            knnGraph.save(new File(outputDirectory, "slice_knn_graph.bin"));
+        } catch (IOException e) {
+            System.err.println("Unable to save knn graph: " + e.getMessage());
+        }
+    }
+
+    /**
+     * drops rows flagged by the correlation and neighbor-distance scans over the shared graph;
+     * the graph is renumbered rather than rebuilt
+     */
+    private void removeKNNOutliers() {
+        Set<Integer> outliers = new OutlierCleaner(gwCleanMatrix.matrix, true, knnGraph)
+                .getConsistentOutliers(resolution, outputDirectory);
+        outliers.addAll(DistanceOutlierFinder.getOutliers(knnGraph, outliers));
+        if (MixerGlobals.printVerboseComments) {
+            System.out.println("Number of knn outliers removed " + outliers.size());
+        }
+        if (outliers.isEmpty()) return;
+
+        float[][] matrix = MatrixRowCleaner.makeNewMatrixAndUpdateIndices(gwCleanMatrix.matrix,
+                rowIndexToIntervalMap, outliers);
+        gwCleanMatrix = new MatrixAndWeight(matrix, gwCleanMatrix.weights);
+        knnGraph = knnGraph.withoutRows(outliers);
+    }
+
+    /**
+     * replaces the clean matrix with its (dense) principal component scores;
+     * the column weights were already applied, so the new columns all get weight 1
+     */
+    private void projectOntoPrincipalComponents() {
+        RandomizedPCA pca = new RandomizedPCA(gwCleanMatrix.matrix, Slice.PCA_MAX_COMPONENTS,
+                Slice.PCA_VARIANCE_PERCENT / 100.0, generator.nextLong());
+        float[][] scores = pca.getScores();
+        int[] weights = new int[scores[0].length];
+        Arrays.fill(weights, 1);
+        gwCleanMatrix = new MatrixAndWeight(scores, weights);
+
+        if (MixerGlobals.printVerboseComments) {
+            System.out.println("PCA components kept: " + weights.length + " explained variance: "
+                    + Arrays.toString(pca.getExplainedVarianceRatio()));
+        }
+
+        File file = new File(outputDirectory, "slice_pca_matrix.npy");
+        MatrixTools.saveMatrixTextNumpy(file.getAbsolutePath(), gwCleanMatrix.matrix);
+    }
+
     protected int[][] getGenomeIndices() {
         int n = gwCleanMatrix.matrix.length;
         int[][] coordinates = new int[n][3];
@@ -153,6 +226,11 @@ public abstract class CompositeGenomeWideMatrix extends DriveMatrix {
         return gwCleanMatrix.matrix;
     }
 
+    @Override
+    public KNNGraph getKNNGraph() {
+        return knnGraph;
+    }
+
     public void appendDataAlongExistingRows(CompositeGenomeWideMatrix additionalData) {
         if (gwCleanMatrix.matrix.length != additionalData.gwCleanMatrix.matrix.length) {
             System.err.println("***************************************\n" +
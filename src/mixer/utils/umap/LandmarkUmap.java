@@ -0,0 +1,218 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package mixer.utils.umap;
+
+import mixer.clt.ParallelizedMixerTools;
+import mixer.utils.knn.KNNGraph;
+import mixer.utils.knn.NNDescent;
+import mixer.utils.similaritymeasures.RobustEuclideanDistance;
+import tagbio.umap.Umap;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UMAP fit on a stratified sample of landmark rows; every other row is placed at the
+ * inverse-distance weighted mean of its nearest landmarks. The landmarks are found by a
+ * breadth-first search over a kNN graph of all rows, but only landmark positions are
+ * ever interpolated, so placement errors don't compound.
+ */
+public class LandmarkUmap {
+
+    public static int SAMPLE_SIZE = 0;
+    private static final int NUM_NEIGHBORS = 15;
+    private static final float EPSILON = 1e-6f;
+    private static final int MAX_SEARCH_VISITS = 1000;
+
+    /**
+     * @param strata group label per row (e.g. chromosome index); landmarks are drawn from each group
+     *               in proportion to its size
+     * @param numThreads   thread budget for the neighbor search and placement (same as the umap's)
+     * @return the embedding of every row, or a plain fit if SAMPLE_SIZE does not reduce the data
+     */
+    public static float[][] fitTransform(Umap umap, float[][] points, int[] strata, long seed, int numThreads) {
+        return fitTransform(umap, points, strata, seed, numThreads, null);
+    }
+
+    /**
+     * @param graph kNN graph over the rows of points to search for landmarks (e.g. the one shared
+     *              from the slice matrix); built here if null or not over the same rows
+     */
+    public static float[][] fitTransform(Umap umap, float[][] points, int[] strata, long seed, int numThreads,
+                                         KNNGraph graph) {
+        if (SAMPLE_SIZE < 1 || SAMPLE_SIZE >= points.length) {
+            return umap.fitTransform(points);
+        }
+
+        int[] landmarks = getStratifiedSample(strata, SAMPLE_SIZE, seed);
+        float[][] landmarkPoints = new float[landmarks.length][];
+        for (int i = 0; i < landmarks.length; i++) {
+            landmarkPoints[i] = points[landmarks[i]];
+        }
+        System.out.println("Fitting UMAP on " + landmarks.length + " of " + points.length + " rows");
+        float[][] landmarkEmbedding = umap.fitTransform(landmarkPoints);
+
+        float[][] embedding = new float[points.length][];
+        boolean[] isLandmark = new boolean[points.length];
+        for (int i = 0; i < landmarks.length; i++) {
+            embedding[landmarks[i]] = landmarkEmbedding[i];
+            isLandmark[landmarks[i]] = true;
+        }
+
+        if (graph == null || graph.getNumRows() != points.length) {
+            graph = NNDescent.build(points, NUM_NEIGHBORS, seed, numThreads);
+        }
+        placeRemainingRows(embedding, points, isLandmark, graph, landmarkEmbedding[0].length, numThreads);
+        return embedding;
+    }
+
+    private static void placeRemainingRows(float[][] embedding, float[][] points, boolean[] isLandmark,
+                                           KNNGraph graph, int numComponents, int numThreads) {
+        List<Integer> unplaced = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger index = new AtomicInteger(0);
+        ParallelizedMixerTools.launchParallelizedCode(numThreads, () -> {
+            int[] visitedBy = new int[points.length];
+            int[] queue = new int[MAX_SEARCH_VISITS];
+            int[] nearbyLandmarks = new int[NUM_NEIGHBORS];
+            int i = index.getAndIncrement();
+            while (i < points.length) {
+                if (!isLandmark[i]) {
+                    int numFound = findNearbyLandmarks(i, graph, isLandmark, visitedBy, queue, nearbyLandmarks);
+                    if (numFound > 0) {
+                        embedding[i] = interpolate(i, points, embedding, nearbyLandmarks, numFound, numComponents);
+                    } else {
+                        unplaced.add(i);
+                    }
+                }
+                i = index.getAndIncrement();
+            }
+        });
+
+        if (unplaced.size() > 0) {
+            // these rows are not connected to any landmark
+            float[] center = getCenter(embedding, numComponents);
+            for (int i : unplaced) {
+                embedding[i] = center;
+            }
+            System.err.println(unplaced.size() + " rows could not be placed relative to the landmarks");
+        }
+    }
+
+    /**
+     * breadth-first search outward from the row over the kNN graph until NUM_NEIGHBORS landmarks
+     * are found or MAX_SEARCH_VISITS rows have been visited
+     *
+     * @param visitedBy scratch array per thread; entries equal to row + 1 were visited in this search
+     * @return number of landmarks written to nearbyLandmarks
+     */
+    private static int findNearbyLandmarks(int row, KNNGraph graph, boolean[] isLandmark, int[] visitedBy,
+                                           int[] queue, int[] nearbyLandmarks) {
+        int stamp = row + 1;
+        int head = 0, tail = 0, numFound = 0;
+        queue[tail++] = row;
+        visitedBy[row] = stamp;
+        while (head < tail && numFound < nearbyLandmarks.length) {
+            int current = queue[head++];
+            for (int r = 0; r < graph.getK() && numFound < nearbyLandmarks.length; r++) {
+                int neighbor = graph.getNeighbor(current, r);
+                if (neighbor < 0 || visitedBy[neighbor] == stamp) continue;
+                visitedBy[neighbor] = stamp;
+                if (isLandmark[neighbor]) {
+                    nearbyLandmarks[numFound++] = neighbor;
+                } else if (tail < queue.length) {
+                    queue[tail++] = neighbor;
+                }
+            }
+        }
+        return numFound;
+    }
+
+    private static float[] interpolate(int row, float[][] points, float[][] embedding, int[] landmarks,
+                                       int numLandmarks, int numComponents) {
+        float[] position = new float[numComponents];
+        double totalWeight = 0;
+        for (int l = 0; l < numLandmarks; l++) {
+            int landmark = landmarks[l];
+            float distance = RobustEuclideanDistance.SINGLETON.distance(points[row], points[landmark]);
+            if (Float.isNaN(distance)) continue;
+            double weight = 1.0 / (distance + EPSILON);
+            for (int c = 0; c < numComponents; c++) {
+                position[c] += weight * embedding[landmark][c];
+            }
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            // no comparable entries; fall back to the plain mean of the landmarks
+            for (int l = 0; l < numLandmarks; l++) {
+                for (int c = 0; c < numComponents; c++) {
+                    position[c] += embedding[landmarks[l]][c];
+                }
+            }
+            totalWeight = numLandmarks;
+        }
+        for (int c = 0; c < numComponents; c++) {
+            position[c] /= totalWeight;
+        }
+        return position;
+    }
+
+    private static float[] getCenter(float[][] embedding, int numComponents) {
+        float[] center = new float[numComponents];
+        int count = 0;
+        for (float[] position : embedding) {
+            if (position == null) continue;
+            for (int c = 0; c < numComponents; c++) {
+                center[c] += position[c];
+            }
+            count++;
+        }
+        for (int c = 0; c < numComponents; c++) {
+            center[c] /= count;
+        }
+        return center;
+    }
+
+    private static int[] getStratifiedSample(int[] strata, int sampleSize, long seed) {
+        Map<Integer, List<Integer>> groups = new TreeMap<>();
+        for (int i = 0; i < strata.length; i++) {
+            groups.computeIfAbsent(strata[i], g -> new ArrayList<>()).add(i);
+        }
+
+        Random generator = new Random(seed);
+        List<Integer> sample = new ArrayList<>();
+        for (List<Integer> members : groups.values()) {
+            int numToTake = (int) Math.max(1, Math.round((double) sampleSize * members.size() / strata.length));
+            Collections.shuffle(members, generator);
+            sample.addAll(members.subList(0, Math.min(numToTake, members.size())));
+        }
+        Collections.sort(sample);
+
+        int[] result = new int[sample.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sample.get(i);
+        }
+        return result;
+    }
+}
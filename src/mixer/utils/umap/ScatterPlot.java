@@ -24,9 +24,9 @@
 
 package mixer.utils.umap;
 
+import mixer.utils.common.TileRenderer;
 import mixer.utils.slice.structures.SubcompartmentColors;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -36,68 +36,51 @@ public class ScatterPlot {
     private final int circleOffset = 3;
     private final int circleWidth = circleOffset * 2;
     private final DataCleaner data;
+    private final float[] xs, ys;
 
     public ScatterPlot(float[][] points, int[][] ids) {
         data = new DataCleaner(points, ids);
+        xs = new float[data.points.length];
+        ys = new float[data.points.length];
+        for (int i = 0; i < data.points.length; i++) {
+            xs[i] = data.points[i][0];
+            ys[i] = data.points[i][1];
+        }
     }
 
     public void plot(String absPath) {
-        for (int i = 0; i < data.numPlots; i++) {
-            plotIndividualMap(absPath + "_" + i + ".png", i);
-        }
-        plotOrderedMap(absPath + "_order.png");
+        // plots and their tiles share TileRenderer's pool, so plots overlap without nesting pools
+        TileRenderer.runOnSharedPool(data.numPlots + 1, i -> {
+            if (i < data.numPlots) {
+                plotIndividualMap(absPath + "_" + i + ".png", i);
+            } else {
+                plotOrderedMap(absPath + "_order.png");
+            }
+        });
     }
 
     private void plotOrderedMap(String absPath) {
-        BufferedImage image = new BufferedImage(data.width, data.height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = (Graphics2D) image.getGraphics();
-        colorBackground(g);
-
+        int[] colors = new int[data.points.length];
         double maxLength = data.points.length;
         for (int i = 0; i < data.points.length; i++) {
             double p = ((double) i) / maxLength;
-            drawGradientCircle(g, data.points[i], p);
+            colors[i] = getGradientColor(p).getRGB();
         }
-
-        save(image, absPath);
+        render(colors, absPath);
     }
 
     private void plotIndividualMap(String absPath, int mapIndex) {
-        BufferedImage image = new BufferedImage(data.width, data.height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = (Graphics2D) image.getGraphics();
-        colorBackground(g);
-
+        int[] colors = new int[data.points.length];
         for (int i = 0; i < data.points.length; i++) {
-            drawCircle(g, data.points[i], data.ids[i][mapIndex]);
-        }
-
-        save(image, absPath);
-    }
-
-    private void colorBackground(Graphics2D g) {
-        g.setColor(BACKGROUND_COLOR);
-        g.fillRect(0, 0, data.width, data.height);
-    }
-
-    private void save(BufferedImage image, String absPath) {
-        File file = new File(absPath);
-        try {
-            ImageIO.write(image, "png", file);
-        } catch (Exception e) {
-            e.printStackTrace();
+            colors[i] = SubcompartmentColors.getColorWithAlpha(data.ids[i][mapIndex], 128).getRGB();
         }
+        render(colors, absPath);
     }
 
-    private void drawCircle(Graphics g, float[] point, int id) {
-        Color color = SubcompartmentColors.getColorWithAlpha(id, 128);
-        g.setColor(color);
-        g.fillOval((int) (point[0] - circleOffset), (int) (point[1] - circleOffset), circleWidth, circleWidth);
-    }
-
-    private void drawGradientCircle(Graphics2D g, float[] point, double p) {
-        Color color = getGradientColor(p);
-        g.setColor(color);
-        g.fillOval((int) (point[0] - circleOffset), (int) (point[1] - circleOffset), circleWidth, circleWidth);
+    private void render(int[] colors, String absPath) {
+        int[] pixels = TileRenderer.renderCircles(data.width, data.height, BACKGROUND_COLOR.getRGB(),
+                xs, ys, colors, circleWidth);
+        TileRenderer.savePNG(new File(absPath), pixels, data.width, data.height, BufferedImage.TYPE_INT_ARGB);
     }
 
     private Color getGradientColor(double p) {
@@ -32,8 +32,10 @@ import javastraw.reader.type.NormalizationType;
 import javastraw.tools.MatrixTools;
 import javastraw.tools.UNIXTools;
 import mixer.utils.common.FloatMatrixTools;
+import mixer.utils.common.LogTools;
 import mixer.utils.matrix.GWInterOnlyMatrix;
 import mixer.utils.matrix.HiCMatrix;
+import mixer.utils.matrix.InterMatrixCache;
 import mixer.utils.matrix.InterOnlyMatrix;
 import mixer.utils.matrix.IntraOnlyMatrix;
 import mixer.utils.similaritymeasures.SimilarityMetric;
@@ -51,6 +53,8 @@ import java.util.Random;
 
 public class UMAPAction {
 
+    public static boolean SAVE_TILES = false;
+
     private final Random generator = new Random(0);
     private final Dataset ds;
     private final NormalizationType norm;
@@ -62,6 +66,13 @@ public class UMAPAction {
             InterOnlyMatrix.InterMapType.SKIP_BY_TWOS, InterOnlyMatrix.InterMapType.FIRST_HALF_VS_SECOND_HALF};
     private HiCMatrix.INTRA_TYPE intraType = null;
     private boolean isIntra = false;
+    private InterMatrixCache matrixCache = null;
+
+    public UMAPAction(Dataset ds, NormalizationType norm, int resolution, int compressionFactor,
+                      SimilarityMetric metric, boolean useGWMap, InterMatrixCache matrixCache) {
+        this(ds, norm, resolution, compressionFactor, metric, useGWMap);
+        this.matrixCache = matrixCache;
+    }
 
     public UMAPAction(Dataset ds, NormalizationType norm, int resolution, int compressionFactor,
                       SimilarityMetric metric, boolean useGWMap) {
@@ -108,6 +119,9 @@ public class UMAPAction {
             System.out.println("Saving files as png; dimensions " + matrix.length + " " + matrix[0].length);
             File file = new File(outputDirectory, "matrix.png");
             FloatMatrixTools.saveMatrixToPNG(file, matrix, false);
+            if (SAVE_TILES) {
+                FloatMatrixTools.saveMatrixToTilePyramid(new File(outputDirectory, "matrix_tiles"), matrix, false);
+            }
             //file = new File(outputDirectory, "matrix_log.png");
             //FloatMatrixTools.saveMatrixToPNG(file, matrix, true);
 
@@ -131,10 +145,12 @@ public class UMAPAction {
         } else {
             for (int y = 0; y < mapTypes.length; y++) {
 
-                final HiCMatrix interMatrix = InterOnlyMatrix.getMatrix(ds, norm, resolution, mapTypes[y], metric);
-                interMatrix.applySimpleLog();
+                final HiCMatrix interMatrix = getInterMatrix(mapTypes[y]);
 
-                float[][] matrix = interMatrix.getMatrix();
+                // the extracted map may be shared, so smooth a copy
+                float[][] matrix = FloatMatrixTools.deepClone(interMatrix.getMatrix());
+                releaseInterMatrix(mapTypes[y]);
+                LogTools.applySimpleLog(matrix);
                 float[][] matrixT = FloatMatrixTools.transpose(matrix);
 
                 IntraMatrixCleaner.rollingAverage(matrix, compressionFactor);
@@ -151,6 +167,19 @@ public class UMAPAction {
         }
     }
 
+    private HiCMatrix getInterMatrix(InterOnlyMatrix.InterMapType mapType) {
+        if (matrixCache != null) {
+            return matrixCache.get(mapType);
+        }
+        return InterOnlyMatrix.getMatrix(ds, norm, resolution, mapType, metric);
+    }
+
+    private void releaseInterMatrix(InterOnlyMatrix.InterMapType mapType) {
+        if (matrixCache != null) {
+            matrixCache.release(mapType);
+        }
+    }
+
     private void processMatrixForUMAP(float[][] matrix, int numBedFiles, Chromosome[] chromosomes, int[] offsets,
                                       List<GenomeWide1DList<SubcompartmentInterval>> allSubcompartments,
                                       File outputDirectory, String folderName, String filePrefix) {
@@ -162,13 +191,21 @@ public class UMAPAction {
             populateIndexToClusterIDMap(chromosomes, offsets, allSubcompartments.get(z), indicesToClusterIDs, z);
         }
 
+        int[] rowToChromosome = new int[matrix.length];
+        for (int x = 0; x < chromosomes.length; x++) {
+            int end = x + 1 < offsets.length ? Math.min(offsets[x + 1], matrix.length) : matrix.length;
+            for (int k = offsets[x]; k < end; k++) {
+                rowToChromosome[k] = x;
+            }
+        }
+
         File outfolder = new File(outputDirectory, folderName);
         UNIXTools.makeDir(outfolder);
-        runUmapAndSaveMatrices(matrix, outfolder, filePrefix, indicesToClusterIDs);
+        runUmapAndSaveMatrices(matrix, outfolder, filePrefix, indicesToClusterIDs, rowToChromosome);
     }
 
     private void runUmapAndSaveMatrices(float[][] initialData, File outputDirectory, String outstem,
-                                        int[][] initialIndexToIDs) {
+                                        int[][] initialIndexToIDs, int[] rowToChromosome) {
 
         ZeroRowRemover rowRemover = new ZeroRowRemover(initialData, initialIndexToIDs);
 
@@ -180,8 +217,10 @@ public class UMAPAction {
         umap.setThreads(numThreads);
         umap.setMinDist(0.5f); // 0.2 ->0.8 -> 0.5  //0.1f -> 0.2f for more general features
         umap.setVerbose(false);
-        umap.setSeed(generator.nextLong());
-        final float[][] result = umap.fitTransform(rowRemover.getCleanData());
+        long seed = generator.nextLong();
+        umap.setSeed(seed);
+        final float[][] result = LandmarkUmap.fitTransform(umap, rowRemover.getCleanData(),
+                rowRemover.getCleanValues(rowToChromosome), seed, numThreads);
 
         File temp = new File(outputDirectory, "umap_" + outstem + "_embedding.npy");
         FloatMatrixTools.saveMatrixTextNumpy(temp.getAbsolutePath(), result);
@@ -24,7 +24,9 @@
 
 package mixer.utils.umap;
 
+import mixer.clt.ParallelizedMixerTools;
 import mixer.utils.drive.DriveMatrix;
+import mixer.utils.knn.KNNGraph;
 import mixer.utils.slice.gmm.SimpleScatterPlot;
 import mixer.utils.slice.structures.SubcompartmentInterval;
 import tagbio.umap.Umap;
@@ -40,20 +42,41 @@ public class UmapProjection {
     private final Map<Integer, SubcompartmentInterval> rowIndexToIntervalMap;
 
     public UmapProjection(DriveMatrix matrix, boolean useCorrelation) {
-        umapProjection = get2DProjection(matrix.getData(useCorrelation));
+        this(matrix, useCorrelation, ParallelizedMixerTools.getNumThreads());
+    }
+
+    public UmapProjection(DriveMatrix matrix, boolean useCorrelation, int numThreads) {
         rowIndexToIntervalMap = matrix.getRowIndexToIntervalMap();
+        float[][] points = matrix.getData(useCorrelation);
+        umapProjection = get2DProjection(points, getChromosomeIndices(points.length), numThreads,
+                matrix.getKNNGraph());
     }
 
     public static float[][] get2DProjection(float[][] points) {
+        return get2DProjection(points, new int[points.length],
+                ParallelizedMixerTools.getNumThreads());
+    }
+
+    /**
+     * @param strata group per row for sampling landmarks when LandmarkUmap.SAMPLE_SIZE is set
+     */
+    public static float[][] get2DProjection(float[][] points, int[] strata, int numThreads) {
+        return get2DProjection(points, strata, numThreads, null);
+    }
+
+    /**
+     * @param graph kNN graph over the same rows as points, reused for landmark placement if not null
+     */
+    public static float[][] get2DProjection(float[][] points, int[] strata, int numThreads, KNNGraph graph) {
         if (points[0].length > 2) {
             final Umap umap = new Umap();
             umap.setNumberComponents(2);
             umap.setNumberNearestNeighbours(50); // 50 // 15 -> 50 for more global picture
-            umap.setThreads(10);
+            umap.setThreads(numThreads);
             umap.setMinDist(0.5f); // 0.2 ->0.8 -> 0.5  //0.1f -> 0.2f for more general features
             umap.setVerbose(false);
             umap.setSeed(0L);
-            return umap.fitTransform(points);
+            return LandmarkUmap.fitTransform(umap, points, strata, 0L, numThreads, graph);
         }
         return points;
     }
@@ -78,12 +101,15 @@ public class UmapProjection {
     }
 
     public void runUmapAndColorByChromosome(File outputDirectory) {
-        int[] indices = new int[umapProjection.length];
+        plotProjection(outputDirectory, getChromosomeIndices(umapProjection.length), "chrom");
+    }
+
+    private int[] getChromosomeIndices(int numRows) {
+        int[] indices = new int[numRows];
         for (int i = 0; i < indices.length; i++) {
             SubcompartmentInterval interval = rowIndexToIntervalMap.get(i);
             indices[i] = interval.getChrIndex();
         }
-
-        plotProjection(outputDirectory, indices, "chrom");
+        return indices;
     }
 }
@@ -79,6 +79,16 @@ public class ZeroRowRemover {
         return counter;
     }
 
+    public int[] getCleanValues(int[] values) {
+        int[] newValues = new int[cleanData.length];
+        for (int i = 0; i < values.length; i++) {
+            if (newPosition[i] > -1) {
+                newValues[newPosition[i]] = values[i];
+            }
+        }
+        return newValues;
+    }
+
     public float[][] getCleanData() {
         return cleanData;
     }